@@ -27,37 +27,45 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment.OSFamily;
+import com.adenops.moustack.agent.client.CircuitBreaker;
+import com.adenops.moustack.agent.client.HttpTransport;
+import com.adenops.moustack.agent.client.RetryBudget;
+import com.adenops.moustack.agent.client.ValidationClient;
 import com.adenops.moustack.agent.config.AgentConfig;
 import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.log4j2.MemoryAppender;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
-import com.adenops.moustack.agent.model.exec.ExecResult;
 import com.adenops.moustack.agent.module.BaseModule;
 import com.adenops.moustack.agent.module.ContainerModule;
 import com.adenops.moustack.agent.module.SystemModule;
+import com.adenops.moustack.agent.util.FileDigestCache;
 import com.adenops.moustack.agent.util.GitUtil;
 import com.adenops.moustack.agent.util.PathUtil;
-import com.adenops.moustack.agent.util.ProcessUtil;
 import com.adenops.moustack.agent.util.PropertiesUtil;
+import com.adenops.moustack.agent.util.SystemCtlUtil;
 import com.adenops.moustack.agent.util.YamlUtil;
 import com.esotericsoftware.yamlbeans.YamlException;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -70,12 +78,28 @@ public class Deployer {
 	private static final Pattern DOCKER_IMAGE_WITH_REGISTRY_REGEX = Pattern.compile("^([^:/]+:\\d+)/(.+):([^:]+)$");
 	private static final Pattern DOCKER_IMAGE_REGEX = Pattern.compile("^(.+):([^:]+)$");
 
-	// this is a global list of files to ensure there are no overrides
-	private final List<String> systemFiles = new ArrayList<>();
+	// this is a global set of files to ensure there are no overrides
+	private final Set<String> systemFiles = ConcurrentHashMap.newKeySet();
 
 	// deployment plan (ordered modules list to deploy)
 	private final List<BaseModule> deploymentPlan;
 
+	// dependencies declared by the modules or the roles
+	private final Map<String, List<String>> planDependencies = new HashMap<>();
+
+	// modules directories with the name of the module they define
+	private final Map<String, String> moduleDirectories = new HashMap<>();
+
+	// what has been deployed by the last successful run
+	private final DeploymentState state;
+
+	// modules converged by the previous runs
+	private final FingerprintStore fingerprints;
+
+	// digests of the resolved properties and of everything else the deployment depends on
+	private final Map<String, String> propertyDigests;
+	private final String inputsDigest;
+
 	// deployment environment
 	private final DeploymentEnvironment env;
 
@@ -128,12 +152,32 @@ public class Deployer {
 		// load deployment environment
 		env = new DeploymentEnvironment(stack, osFamily, osId, osVersion);
 
+		// snapshot the resolved inputs before any module gets a chance to touch them
+		state = DeploymentState.load(AgentConfig.getInstance());
+		fingerprints = FingerprintStore.load(AgentConfig.getInstance());
+		propertyDigests = DeploymentState.digestProperties(stack.getProperties());
+		inputsDigest = computeInputsDigest();
+
 		// load the global modules list
 		Map<String, BaseModule> modules = loadModules();
 		log.info("loaded {} modules definitions", modules.size());
 
 		// load deployment plan
 		deploymentPlan = loadDeploymentPlan(modules);
+
+		// start downloading the packages while the deployment gets ready
+		List<String> packages = new ArrayList<>();
+		List<ContainerModule> containers = new ArrayList<>();
+		for (BaseModule module : deploymentPlan) {
+			if (module instanceof SystemModule)
+				packages.addAll(((SystemModule) module).getPlannedPackages());
+			else if (module instanceof ContainerModule)
+				containers.add((ContainerModule) module);
+		}
+		env.getPackagingClient().prefetch(packages.toArray(new String[packages.size()]));
+
+		// images are pulled as soon as the Docker client is initialized
+		env.setPlannedContainers(containers);
 	}
 
 	private List<BaseModule> loadDeploymentPlan(Map<String, BaseModule> modules) throws DeploymentException {
@@ -160,6 +204,22 @@ public class Deployer {
 					throw new DeploymentException(
 							"module " + moduleName + " not defined but declared by the role " + role);
 				plan.add(module);
+
+				if (module.getDependencies() != null)
+					addPlanDependencies(moduleName, module.getDependencies());
+			}
+
+			// the role can also declare dependencies between its modules
+			Object roleDependencies = planConfig.get("depends_on");
+			if (roleDependencies != null) {
+				if (!(roleDependencies instanceof Map))
+					throw new DeploymentException("invalid depends_on section in deployment plan of role " + role);
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) roleDependencies).entrySet()) {
+					if (!planModules.contains(entry.getKey()))
+						throw new DeploymentException("module " + entry.getKey()
+								+ " declares dependencies but is not part of the role " + role);
+					addPlanDependencies((String) entry.getKey(), YamlUtil.getList(entry.getValue()));
+				}
 			}
 
 			log.info("deployment plan for role [{}] declares {} modules", role, modules.size());
@@ -167,6 +227,13 @@ public class Deployer {
 		return plan;
 	}
 
+	private void addPlanDependencies(String moduleName, List<String> dependencies) {
+		List<String> moduleDependencies = planDependencies.computeIfAbsent(moduleName, k -> new ArrayList<>());
+		for (String dependency : dependencies)
+			if (!moduleDependencies.contains(dependency))
+				moduleDependencies.add(dependency);
+	}
+
 	private void validateFile(String fileFrom, String fileTo) throws DeploymentException {
 		// ensure the source file exists
 		if (!new File(fileFrom).exists())
@@ -176,12 +243,9 @@ public class Deployer {
 		if (fileTo == null)
 			return;
 
-		// ensure the destination file has not already been declared
-		if (systemFiles.contains(fileTo))
+		// record the destination file, ensuring it has not already been declared
+		if (!systemFiles.add(fileTo))
 			throw new DeploymentException("target file " + fileTo + " (from " + fileFrom + ") is already declared");
-
-		// record the destination file
-		systemFiles.add(fileTo);
 	}
 
 	private DeploymentFile toSystemDeploymentFile(String moduleName, String fileDefinition, boolean parse)
@@ -370,14 +434,22 @@ public class Deployer {
 
 		log.trace("module {} type is {}", name, type);
 
+		BaseModule loaded = null;
 		switch (type) {
 		case "system":
-			return loadSystemModule(name, moduleConfig);
+			loaded = loadSystemModule(name, moduleConfig);
+			break;
 		case "container":
-			return loadContainerModule(name, moduleConfig);
+			loaded = loadContainerModule(name, moduleConfig);
+			break;
 		default:
 			throw new DeploymentException("invalid module type: " + type);
 		}
+
+		if (moduleConfig.containsKey("depends_on"))
+			loaded.setDependencies(YamlUtil.getList(moduleConfig.get("depends_on")));
+
+		return loaded;
 	}
 
 	private Map<String, BaseModule> loadModules() throws DeploymentException {
@@ -397,11 +469,51 @@ public class Deployer {
 			log.trace("found module in {}", modulePath);
 			BaseModule module = loadModule(modulePath);
 			modules.put(module.getName(), module);
+			moduleDirectories.put(modulePath, module.getName());
 		}
 
 		return modules;
 	}
 
+	// the plan transaction covers all the system modules, including the converged ones
+	private boolean isChangedByTransaction(BaseModule module) throws DeploymentException {
+		if (!(module instanceof SystemModule))
+			return false;
+		SystemModule systemModule = (SystemModule) module;
+		return env.getPackagingClient().isChangedByTransaction(systemModule.getPlannedPackages(),
+				systemModule.getPlannedRemovals());
+	}
+
+	private boolean isConverged(BaseModule module, DeploymentChanges changes) throws DeploymentException {
+		String fingerprint = module.getFingerprint(env);
+		if (fingerprint == null)
+			return false;
+
+		// the fingerprint is authoritative, the git changes are only used for modules never fingerprinted
+		Boolean converged = fingerprints.matches(module, fingerprint);
+		if (converged != null)
+			return converged;
+		return !changes.isChanged(module);
+	}
+
+	private String computeInputsDigest() {
+		StringBuilder sb = new StringBuilder();
+		if (MoustackAgent.applicationInfo != null) {
+			sb.append(MoustackAgent.applicationInfo.getVersion()).append('\n');
+			sb.append(MoustackAgent.applicationInfo.getBuild()).append('\n');
+		}
+		sb.append(AgentConfig.getInstance().getId()).append('\n');
+		sb.append(AgentConfig.getInstance().getProfile()).append('\n');
+		sb.append(env.getStack().getGitRepo()).append('\n');
+		sb.append(env.getStack().getGitBranch()).append('\n');
+		sb.append(env.getStack().getDockerRegistry()).append('\n');
+		sb.append(env.getStack().getDockerMoustackTag()).append('\n');
+		sb.append(env.getOsFamily()).append('\n');
+		sb.append(env.getOsId()).append('\n');
+		sb.append(env.getOsVersion()).append('\n');
+		return DigestUtils.sha256Hex(sb.toString());
+	}
+
 	private void logModule(String name, String type, String register) {
 		if (!log.isDebugEnabled())
 			return;
@@ -426,16 +538,68 @@ public class Deployer {
 		log.info("starting deployment of " + AgentConfig.getInstance().getId() + " (roles: "
 				+ String.join(",", env.getStack().getRoles()) + ")");
 
+		// retries and unreachable endpoints are accounted per run
+		RetryBudget.reset(AgentConfig.getInstance().getRetryBudget());
+		CircuitBreaker.reset();
+
 		env.getPackagingClient().init();
 
+		boolean force = AgentConfig.getInstance().isForce();
+		if (force)
+			log.info("forced deployment, all modules will be deployed");
+
+		DeploymentChanges changes = force ? null
+				: DeploymentChanges.compute(state, env.getStack(), inputsDigest, propertyDigests, moduleDirectories,
+						deploymentPlan);
+
+		List<String> packages = new ArrayList<>();
+		List<String> removals = new ArrayList<>();
+		Set<String> units = new LinkedHashSet<>();
 		for (BaseModule module : deploymentPlan) {
-			log.info("deploying {} module [{}]", module.getType(), module.getName());
-			changed |= module.deploy(env);
-			module.validate(env);
+			if (module instanceof SystemModule) {
+				packages.addAll(((SystemModule) module).getPlannedPackages());
+				removals.addAll(((SystemModule) module).getPlannedRemovals());
+				units.addAll(((SystemModule) module).getUnits());
+			}
+		}
+
+		// packages of the whole plan are handled in a single background transaction, the modules only get the
+		// outcome, others modules can be deployed in the meantime
+		env.getPackagingClient().prepareTransactionAsync(packages, removals);
+
+		SystemCtlUtil.prepare(units);
+
+		DeploymentScheduler scheduler = new DeploymentScheduler(deploymentPlan, planDependencies,
+				AgentConfig.getInstance().getWorkers());
+		ValidationClient validation = env.getValidationClient();
+		List<BaseModule> validating = Collections.synchronizedList(new ArrayList<>());
+		try {
+			changed = scheduler.run(module -> {
+				// a declared dependency means we need its endpoints, otherwise they come up while we deploy
+				for (String dependency : planDependencies.getOrDefault(module.getName(),
+						Collections.<String> emptyList()))
+					validation.await(dependency);
+
+				return deployModule(module, force, changes, validating);
+			});
+
+			// fingerprint the modules once their endpoints are ready
+			for (BaseModule module : validating) {
+				validation.await(module.getName());
+				fingerprints.update(module, module.getFingerprint(env));
+			}
+		} finally {
+			validation.cancel();
 		}
 
+		state.save(env.getStack().getGitHead(), inputsDigest, propertyDigests);
+		FileDigestCache.save();
+
 		long duration = System.currentTimeMillis() - start;
 		log.info("deployment finished (" + duration / 1000 + "s)");
+		log.debug("HTTP connection pool: {}", HttpTransport.getInstance().getStatistics());
+		log.debug("API calls: {}", RetryBudget.getStatistics());
+		log.debug("API time-to-ready: {}", validation.getStatistics());
 
 		if (changed)
 			log.info("system has been updated");
@@ -445,6 +609,33 @@ public class Deployer {
 		return changed;
 	}
 
+	private boolean deployModule(BaseModule module, boolean force, DeploymentChanges changes,
+			List<BaseModule> validating) throws DeploymentException {
+		if (!force && isConverged(module, changes)) {
+			if (isChangedByTransaction(module))
+				log.info("{} module [{}] unchanged but its packages have been updated", module.getType(),
+						module.getName());
+			else if (module.isAlive(env)) {
+				log.info("{} module [{}] unchanged, skipping", module.getType(), module.getName());
+				return false;
+			} else
+				log.info("{} module [{}] unchanged but not running properly", module.getType(), module.getName());
+		}
+
+		// if the deployment fails, we don't know in which state the module is
+		fingerprints.invalidate(module);
+
+		log.info("deploying {} module [{}]", module.getType(), module.getName());
+		boolean moduleChanged = module.deploy(env);
+		module.validate(env);
+
+		if (env.getValidationClient().hasProbes(module.getName()))
+			validating.add(module);
+		else
+			fingerprints.update(module, module.getFingerprint(env));
+		return moduleChanged;
+	}
+
 	private void appendLine(StringBuffer sb, String... strings) {
 		for (String string : strings)
 			sb.append(string);
@@ -462,6 +653,13 @@ public class Deployer {
 		}
 	}
 
+	/**
+	 * Release the resources of the run, called when a new deployer replaces this one.
+	 */
+	public void close() {
+		env.close();
+	}
+
 	public String getSystemReport(boolean includeLogs) throws DeploymentException {
 		StringBuffer sb = new StringBuffer();
 
@@ -504,13 +702,7 @@ public class Deployer {
 			log.trace("docker client not initialized, containers information will not be reported");
 
 		// packages installed
-		if (env.getOsFamily().equals(DeploymentEnvironment.OSFamily.REDHAT)) {
-			ExecResult result = ProcessUtil.execute("yum", "list", "installed", "--debuglevel=0");
-			report.put("packages", toBase64(new String(result.getStdout().toByteArray(), StandardCharsets.UTF_8)));
-		} else {
-			ExecResult result = ProcessUtil.execute("dpkg-query", "-f", "${binary:Package}-${Version}\n", "-W");
-			report.put("packages", toBase64(new String(result.getStdout().toByteArray(), StandardCharsets.UTF_8)));
-		}
+		report.put("packages", toBase64(env.getPackagingClient().getInstalledPackages()));
 
 		ObjectMapper objectMapper = new ObjectMapper();
 
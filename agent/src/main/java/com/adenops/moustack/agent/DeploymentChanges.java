@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.config.AgentConfig;
+import com.adenops.moustack.agent.config.StackConfig;
+import com.adenops.moustack.agent.config.StackProperty;
+import com.adenops.moustack.agent.model.deployment.DeploymentFile;
+import com.adenops.moustack.agent.module.BaseModule;
+import com.adenops.moustack.agent.util.DeploymentUtil;
+import com.adenops.moustack.agent.util.GitUtil;
+
+/**
+ * Modules impacted by the changes since the last successful run.
+ *
+ * A module is changed if a file in its directory changed or if one of its templates references a property whose
+ * resolved value changed. Anything we cannot attribute to a module (role plan, stack properties used by the agent
+ * itself, agent upgrade, ...) triggers a full deployment.
+ *
+ */
+public class DeploymentChanges {
+	private static final Logger log = LoggerFactory.getLogger(DeploymentChanges.class);
+
+	private final boolean full;
+	private final Set<String> changedModules;
+
+	private DeploymentChanges(boolean full, Set<String> changedModules) {
+		this.full = full;
+		this.changedModules = changedModules;
+	}
+
+	private static DeploymentChanges full(String reason) {
+		log.info("full deployment required: {}", reason);
+		return new DeploymentChanges(true, Collections.emptySet());
+	}
+
+	public static DeploymentChanges compute(DeploymentState state, StackConfig stack, String inputsDigest,
+			Map<String, String> propertyDigests, Map<String, String> moduleDirectories, List<BaseModule> plan)
+			throws DeploymentException {
+		if (state.getGitHead() == null)
+			return full("no previous successful deployment");
+
+		if (!inputsDigest.equals(state.getInputsDigest()))
+			return full("agent or server settings changed");
+
+		Set<String> paths = GitUtil.getChangedPaths(state.getGitHead(), stack.getGitHead());
+		if (paths == null)
+			return full("cannot diff with previous configuration " + state.getGitHead());
+
+		Set<String> changedModules = new HashSet<>();
+
+		// paths are relative to the repository root, which is the parent of the profile
+		String profilePrefix = AgentConfig.getInstance().getProfile() + "/";
+		String modulesPrefix = profilePrefix + "modules/";
+
+		for (String path : paths) {
+			if (!path.startsWith(profilePrefix))
+				// another profile
+				continue;
+
+			if (path.startsWith(modulesPrefix)) {
+				String directory = path.substring(modulesPrefix.length()).split("/")[0];
+				String module = moduleDirectories.get(directory);
+				if (module != null) {
+					log.debug("module [{}] changed: {}", module, path);
+					changedModules.add(module);
+				}
+				continue;
+			}
+
+			// properties are compared after resolution
+			if (path.endsWith(".properties"))
+				continue;
+
+			return full("configuration file " + path + " changed");
+		}
+
+		Set<String> changedProperties = state.getChangedProperties(propertyDigests);
+
+		// stack properties are used by the agent code, we cannot know which modules depend on them
+		for (StackProperty property : StackProperty.values())
+			if (changedProperties.contains(property.getName()))
+				return full("property " + property.getName() + " changed");
+
+		if (!changedProperties.isEmpty()) {
+			log.debug("changed properties: {}", changedProperties);
+			for (BaseModule module : plan) {
+				if (changedModules.contains(module.getName()))
+					continue;
+				for (DeploymentFile file : module.getFiles()) {
+					if (!file.isParse())
+						continue;
+					if (!Collections.disjoint(DeploymentUtil.getReferencedVariables(file.getSource()),
+							changedProperties)) {
+						log.debug("module [{}] changed: {} references modified properties", module.getName(),
+								file.getSource());
+						changedModules.add(module.getName());
+						break;
+					}
+				}
+			}
+		}
+
+		log.info("incremental deployment, changed modules: {}",
+				changedModules.isEmpty() ? "none" : String.join(",", changedModules));
+		return new DeploymentChanges(false, changedModules);
+	}
+
+	public boolean isFull() {
+		return full;
+	}
+
+	public boolean isChanged(BaseModule module) {
+		return full || changedModules.contains(module.getName());
+	}
+}
@@ -19,6 +19,9 @@
 
 package com.adenops.moustack.agent;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,17 +30,19 @@ import com.adenops.moustack.agent.client.DesignateClient;
 import com.adenops.moustack.agent.client.DockerLocalClient;
 import com.adenops.moustack.agent.client.DpkgClient;
 import com.adenops.moustack.agent.client.KeystoneClient;
+import com.adenops.moustack.agent.client.KeystoneReconciler;
 import com.adenops.moustack.agent.client.MongoClient;
 import com.adenops.moustack.agent.client.MySQLClient;
 import com.adenops.moustack.agent.client.ValidationClient;
 import com.adenops.moustack.agent.client.YumClient;
 import com.adenops.moustack.agent.config.StackConfig;
+import com.adenops.moustack.agent.module.ContainerModule;
 
 /**
  * Everything the modules may need during the deployment.
  *
  * We use lazy loading because most of the services do not exist yet when the environment is instanciated.
- * All instantiations are thread safe, even if it shouldn't be necessary with the current implementation.
+ * All instantiations are thread safe, modules may be deployed concurrently (see DeploymentScheduler).
  *
  */
 public class DeploymentEnvironment {
@@ -57,12 +62,16 @@ public class DeploymentEnvironment {
 
 	// clients
 	private final AbstractPackagingClient packagingClient;
-	private DockerLocalClient dockerClient;
-	private KeystoneClient keystoneClient;
-	private DesignateClient designateClient;
-	private MongoClient mongoClient;
-	private MySQLClient mySQLClient;
-	private ValidationClient validationClient;
+	private volatile DockerLocalClient dockerClient;
+	private volatile KeystoneClient keystoneClient;
+	private volatile KeystoneReconciler keystoneReconciler;
+	private volatile DesignateClient designateClient;
+	private volatile MongoClient mongoClient;
+	private volatile MySQLClient mySQLClient;
+	private volatile ValidationClient validationClient;
+
+	// containers of the deployment plan, their images are pulled as soon as Docker is available
+	private volatile List<ContainerModule> plannedContainers = Collections.emptyList();
 
 	public DeploymentEnvironment(StackConfig stack, OSFamily osFamily, String osId, String osVersion)
 			throws DeploymentException {
@@ -91,14 +100,30 @@ public class DeploymentEnvironment {
 			synchronized (DockerLocalClient.class) {
 				if (dockerClient != null)
 					return dockerClient;
-				dockerClient = new DockerLocalClient(stack);
+				DockerLocalClient client = new DockerLocalClient(stack);
+				client.prePull(plannedContainers);
+				dockerClient = client;
 			}
 		}
 		return dockerClient;
 	}
 
+	public void setPlannedContainers(List<ContainerModule> plannedContainers) {
+		this.plannedContainers = plannedContainers;
+	}
+
 	public boolean isDockerClientInitialized() {
-		return dockerClient == null;
+		return dockerClient != null;
+	}
+
+	/**
+	 * Release the clients holding threads or connections, the environment cannot be used anymore.
+	 */
+	public void close() {
+		synchronized (DockerLocalClient.class) {
+			if (dockerClient != null)
+				dockerClient.close();
+		}
 	}
 
 	public KeystoneClient getKeystoneClient() throws DeploymentException {
@@ -112,6 +137,17 @@ public class DeploymentEnvironment {
 		return keystoneClient;
 	}
 
+	public KeystoneReconciler getKeystoneReconciler() throws DeploymentException {
+		if (keystoneReconciler == null) {
+			synchronized (KeystoneReconciler.class) {
+				if (keystoneReconciler != null)
+					return keystoneReconciler;
+				keystoneReconciler = new KeystoneReconciler(stack, getKeystoneClient(), plannedContainers);
+			}
+		}
+		return keystoneReconciler;
+	}
+
 	public DesignateClient getDesignateClient() throws DeploymentException {
 		if (designateClient == null) {
 			synchronized (DesignateClient.class) {
@@ -139,7 +175,7 @@ public class DeploymentEnvironment {
 			synchronized (MySQLClient.class) {
 				if (mySQLClient != null)
 					return mySQLClient;
-				mySQLClient = new MySQLClient(stack);
+				mySQLClient = new MySQLClient(stack, plannedContainers);
 			}
 		}
 		return mySQLClient;
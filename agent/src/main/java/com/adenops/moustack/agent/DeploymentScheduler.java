@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.module.BaseModule;
+
+/**
+ * Run the deployment plan as a DAG on a bounded worker pool.
+ *
+ * A module is started as soon as all the modules it depends on are successfully deployed. A module which does not
+ * declare any dependency implicitly depends on the previous module of the plan, so a plan without any declaration is
+ * still deployed sequentially. Dependencies on modules which are not part of the plan are ignored.
+ *
+ */
+public class DeploymentScheduler {
+	private static final Logger log = LoggerFactory.getLogger(DeploymentScheduler.class);
+
+	// how long we wait for running modules to stop after a failure
+	private static final int SHUTDOWN_TIMEOUT = 60;
+
+	public interface ModuleTask {
+		boolean execute(BaseModule module) throws DeploymentException;
+	}
+
+	// modules to deploy with their resolved dependencies, in plan order
+	private final Map<String, Set<String>> dependencies = new LinkedHashMap<>();
+	private final Map<String, BaseModule> modules = new LinkedHashMap<>();
+	private final int workers;
+
+	public DeploymentScheduler(List<BaseModule> plan, Map<String, List<String>> declaredDependencies, int workers)
+			throws DeploymentException {
+		this.workers = Math.max(1, workers);
+
+		for (BaseModule module : plan) {
+			if (modules.containsKey(module.getName())) {
+				log.warn("module [{}] is declared more than once in the deployment plan", module.getName());
+				continue;
+			}
+			modules.put(module.getName(), module);
+		}
+
+		String previous = null;
+		for (String name : modules.keySet()) {
+			Set<String> moduleDependencies = new HashSet<>();
+			List<String> declared = declaredDependencies.get(name);
+			if (declared == null) {
+				// no declaration, keep the plan order
+				if (previous != null)
+					moduleDependencies.add(previous);
+			} else {
+				for (String dependency : declared) {
+					if (dependency.equals(name))
+						throw new DeploymentException("module " + name + " cannot depend on itself");
+					if (modules.containsKey(dependency))
+						moduleDependencies.add(dependency);
+					else
+						log.debug("module [{}] depends on [{}] which is not part of the plan, ignoring", name,
+								dependency);
+				}
+			}
+			dependencies.put(name, moduleDependencies);
+			previous = name;
+		}
+
+		checkCycles();
+	}
+
+	private void checkCycles() throws DeploymentException {
+		Set<String> resolved = new HashSet<>();
+		Set<String> visiting = new HashSet<>();
+		for (String name : dependencies.keySet())
+			visit(name, resolved, visiting, new LinkedList<>());
+	}
+
+	private void visit(String name, Set<String> resolved, Set<String> visiting, LinkedList<String> path)
+			throws DeploymentException {
+		if (resolved.contains(name))
+			return;
+		path.add(name);
+		if (!visiting.add(name))
+			throw new DeploymentException("dependency cycle detected: " + String.join(" -> ", path));
+		for (String dependency : dependencies.get(name))
+			visit(dependency, resolved, visiting, path);
+		visiting.remove(name);
+		resolved.add(name);
+		path.removeLast();
+	}
+
+	private ExecutorService createExecutor() {
+		return Executors.newFixedThreadPool(Math.min(workers, modules.size()), new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "deployer-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private boolean execute(ModuleTask task, BaseModule module) throws DeploymentException {
+		// name the worker after the module, it makes interleaved logs readable
+		Thread thread = Thread.currentThread();
+		String threadName = thread.getName();
+		thread.setName(threadName + "-" + module.getName());
+		try {
+			return task.execute(module);
+		} finally {
+			thread.setName(threadName);
+		}
+	}
+
+	private void shutdown(ExecutorService executor) {
+		// no-op on success, interrupt the running modules on failure
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+				log.warn("some modules are still running after {}s", SHUTDOWN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Execute the task on every module, respecting dependencies.
+	 *
+	 * @return true if at least one module execution reported a change
+	 * @throws DeploymentException
+	 *             the first failure, running modules are interrupted and no new module is started
+	 */
+	public boolean run(ModuleTask task) throws DeploymentException {
+		if (modules.isEmpty())
+			return false;
+
+		ExecutorService executor = createExecutor();
+		CompletionService<Boolean> completionService = new ExecutorCompletionService<>(executor);
+
+		// modules not started yet, in plan order
+		List<String> pending = new ArrayList<>(modules.keySet());
+		Map<Future<Boolean>, String> running = new HashMap<>();
+		Set<String> done = new HashSet<>();
+		boolean changed = false;
+
+		try {
+			while (!pending.isEmpty() || !running.isEmpty()) {
+				// start every module whose dependencies are satisfied
+				Iterator<String> iterator = pending.iterator();
+				while (iterator.hasNext()) {
+					String name = iterator.next();
+					if (!done.containsAll(dependencies.get(name)))
+						continue;
+					iterator.remove();
+					BaseModule module = modules.get(name);
+					running.put(completionService.submit(() -> execute(task, module)), name);
+				}
+
+				if (running.isEmpty())
+					// cannot happen as cycles are rejected by the constructor
+					throw new DeploymentException("deployment plan is stuck, unresolvable modules: " + pending);
+
+				Future<Boolean> future = completionService.take();
+				changed |= future.get();
+				done.add(running.remove(future));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DeploymentException("deployment interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DeploymentException)
+				throw (DeploymentException) e.getCause();
+			throw new DeploymentException("unexpected error during deployment", e.getCause());
+		} finally {
+			shutdown(executor);
+		}
+
+		return changed;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.config.AgentConfig;
+import com.adenops.moustack.agent.util.FilesUtils;
+import com.adenops.moustack.agent.util.PropertiesUtil;
+
+/**
+ * What the last successful run deployed, persisted in the agent state directory.
+ *
+ * Only property digests are stored, we don't want to leave passwords on the disk.
+ *
+ */
+public class DeploymentState {
+	private static final Logger log = LoggerFactory.getLogger(DeploymentState.class);
+	private static final String STATE_FILE = "deployment.state";
+	private static final String PROPERTIES_FILE = "properties.digests";
+	private static final String GIT_HEAD = "git.head";
+	private static final String INPUTS_DIGEST = "inputs.digest";
+
+	private final File stateDir;
+	private String gitHead;
+	private String inputsDigest;
+	private final Map<String, String> propertyDigests = new HashMap<>();
+
+	private DeploymentState(File stateDir) {
+		this.stateDir = stateDir;
+	}
+
+	public static DeploymentState load(AgentConfig agentConfig) {
+		DeploymentState state = new DeploymentState(new File(agentConfig.getStateDir()));
+
+		File stateFile = new File(state.stateDir, STATE_FILE);
+		File propertiesFile = new File(state.stateDir, PROPERTIES_FILE);
+		if (!stateFile.exists() || !propertiesFile.exists()) {
+			log.debug("no previous deployment state found in {}", state.stateDir);
+			return state;
+		}
+
+		try {
+			Properties properties = PropertiesUtil.loadProperties(stateFile);
+			Properties digests = PropertiesUtil.loadProperties(propertiesFile);
+			for (String key : digests.stringPropertyNames())
+				state.propertyDigests.put(key, digests.getProperty(key));
+			state.gitHead = properties.getProperty(GIT_HEAD);
+			state.inputsDigest = properties.getProperty(INPUTS_DIGEST);
+		} catch (IOException e) {
+			// a corrupted state only means a full deployment
+			log.warn("cannot load deployment state from {}: {}", state.stateDir, e.getMessage());
+			state.propertyDigests.clear();
+		}
+
+		return state;
+	}
+
+	static File createStateDir(AgentConfig agentConfig) throws DeploymentException {
+		File stateDir = new File(agentConfig.getStateDir());
+		if (!stateDir.exists()) {
+			if (!stateDir.mkdirs())
+				throw new DeploymentException("cannot create state directory " + stateDir);
+			FilesUtils.updatePermissions(stateDir, PosixFilePermissions.fromString("rwx------"));
+		}
+		return stateDir;
+	}
+
+	public static Map<String, String> digestProperties(Properties properties) {
+		Map<String, String> digests = new HashMap<>();
+		for (String key : properties.stringPropertyNames())
+			digests.put(key, DigestUtils.sha256Hex(properties.getProperty(key)));
+		return digests;
+	}
+
+	public void save(String gitHead, String inputsDigest, Map<String, String> propertyDigests)
+			throws DeploymentException {
+		createStateDir(AgentConfig.getInstance());
+
+		Properties properties = new Properties();
+		properties.setProperty(GIT_HEAD, gitHead);
+		properties.setProperty(INPUTS_DIGEST, inputsDigest);
+
+		Properties digests = new Properties();
+		digests.putAll(propertyDigests);
+
+		try {
+			// properties first, the state file is what makes the whole state valid
+			PropertiesUtil.storeProperties(digests, new File(stateDir, PROPERTIES_FILE));
+			PropertiesUtil.storeProperties(properties, new File(stateDir, STATE_FILE));
+		} catch (IOException e) {
+			throw new DeploymentException("cannot save deployment state in " + stateDir, e);
+		}
+
+		this.gitHead = gitHead;
+		this.inputsDigest = inputsDigest;
+		this.propertyDigests.clear();
+		this.propertyDigests.putAll(propertyDigests);
+	}
+
+	/**
+	 * @return the properties added, removed or modified since the last successful run
+	 */
+	public Set<String> getChangedProperties(Map<String, String> currentDigests) {
+		Set<String> changed = new HashSet<>();
+		for (Map.Entry<String, String> entry : currentDigests.entrySet())
+			if (!entry.getValue().equals(propertyDigests.get(entry.getKey())))
+				changed.add(entry.getKey());
+		for (String key : propertyDigests.keySet())
+			if (!currentDigests.containsKey(key))
+				changed.add(key);
+		return changed;
+	}
+
+	public String getGitHead() {
+		return gitHead;
+	}
+
+	public String getInputsDigest() {
+		return inputsDigest;
+	}
+
+	public File getStateDir() {
+		return stateDir;
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.config.AgentConfig;
+import com.adenops.moustack.agent.model.deployment.DeploymentFile;
+import com.adenops.moustack.agent.module.BaseModule;
+import com.adenops.moustack.agent.util.PropertiesUtil;
+
+/**
+ * Fingerprints of the modules converged by the previous runs, persisted in the agent state directory.
+ *
+ * Along with the module fingerprint we keep the stat metadata of the target files, so a file modified outside of the
+ * agent invalidates the module without having to read it.
+ *
+ */
+public class FingerprintStore {
+	private static final Logger log = LoggerFactory.getLogger(FingerprintStore.class);
+	private static final String FINGERPRINTS_FILE = "modules.fingerprints";
+	private static final String DIGEST_PREFIX = "digest.";
+	private static final String STAT_PREFIX = "stat.";
+
+	private final Properties fingerprints;
+
+	private FingerprintStore(Properties fingerprints) {
+		this.fingerprints = fingerprints;
+	}
+
+	public static FingerprintStore load(AgentConfig agentConfig) {
+		File file = new File(agentConfig.getStateDir(), FINGERPRINTS_FILE);
+		if (!file.exists())
+			return new FingerprintStore(new Properties());
+
+		try {
+			return new FingerprintStore(PropertiesUtil.loadProperties(file));
+		} catch (IOException e) {
+			log.warn("cannot load modules fingerprints from {}: {}", file, e.getMessage());
+			return new FingerprintStore(new Properties());
+		}
+	}
+
+	private static String statDigest(BaseModule module) throws DeploymentException {
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		for (DeploymentFile file : module.getFiles()) {
+			digest.update(file.getTarget().getBytes(StandardCharsets.UTF_8));
+			try {
+				PosixFileAttributes attributes = Files.readAttributes(new File(file.getTarget()).toPath(),
+						PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				digest.update(String.format(":%s:%d:%d:%s:%s:%s;", attributes.fileKey(), attributes.size(),
+						attributes.lastModifiedTime().toMillis(),
+						PosixFilePermissions.toString(attributes.permissions()), attributes.owner().getName(),
+						attributes.group().getName()).getBytes(StandardCharsets.UTF_8));
+			} catch (NoSuchFileException e) {
+				digest.update(":missing;".getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new DeploymentException("cannot read attributes of file " + file.getTarget(), e);
+			}
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * @return null if the module has no recorded fingerprint, otherwise whether the module is still converged
+	 */
+	public Boolean matches(BaseModule module, String fingerprint) throws DeploymentException {
+		String recorded = fingerprints.getProperty(DIGEST_PREFIX + module.getName());
+		if (recorded == null)
+			return null;
+
+		if (!recorded.equals(fingerprint)) {
+			log.debug("module [{}] fingerprint changed", module.getName());
+			return false;
+		}
+
+		if (!statDigest(module).equals(fingerprints.getProperty(STAT_PREFIX + module.getName()))) {
+			log.info("module [{}] files have been modified since the last run", module.getName());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Record the fingerprint of a module which has been successfully deployed and validated.
+	 */
+	public synchronized void update(BaseModule module, String fingerprint) throws DeploymentException {
+		if (fingerprint == null) {
+			invalidate(module);
+			return;
+		}
+		fingerprints.setProperty(DIGEST_PREFIX + module.getName(), fingerprint);
+		fingerprints.setProperty(STAT_PREFIX + module.getName(), statDigest(module));
+		save();
+	}
+
+	public synchronized void invalidate(BaseModule module) throws DeploymentException {
+		if (fingerprints.remove(DIGEST_PREFIX + module.getName()) == null)
+			return;
+		fingerprints.remove(STAT_PREFIX + module.getName());
+		save();
+	}
+
+	private void save() throws DeploymentException {
+		File file = new File(DeploymentState.createStateDir(AgentConfig.getInstance()), FINGERPRINTS_FILE);
+		try {
+			PropertiesUtil.storeProperties(fingerprints, file);
+		} catch (IOException e) {
+			throw new DeploymentException("cannot save modules fingerprints in " + file, e);
+		}
+	}
+}
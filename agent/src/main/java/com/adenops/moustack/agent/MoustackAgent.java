@@ -136,8 +136,10 @@ public class MoustackAgent {
 				response = MoustackClient.getInstance().longPoll();
 
 				// timeout is expected with long-polling, skip to next iteration
-				if (response.getStatusInfo().equals(Response.Status.REQUEST_TIMEOUT))
+				if (response.getStatusInfo().equals(Response.Status.REQUEST_TIMEOUT)) {
+					response.close();
 					continue;
+				}
 
 			} catch (DeploymentException e) {
 
@@ -204,7 +206,11 @@ public class MoustackAgent {
 			if (!StringUtils.isBlank(stack.getDockerMoustackTag()))
 				log.info("docker moustack tag: " + stack.getDockerMoustackTag());
 
+			Deployer previous = deployer;
 			deployer = new Deployer(stack);
+			// the previous deployer was only kept for the reports, release its Docker client
+			if (previous != null)
+				previous.close();
 
 			boolean changed = deployer.start();
 			MoustackClient.getInstance().postReport(
@@ -19,14 +19,20 @@
 
 package com.adenops.moustack.agent.client;
 
+import java.net.URI;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ws.rs.client.Invocation.Builder;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,15 +41,39 @@ import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.model.openstack.BaseResponse;
 import com.adenops.moustack.agent.model.openstack.Error;
 import com.adenops.moustack.agent.model.openstack.OSEntity;
+import com.adenops.moustack.agent.model.openstack.keystone.OSAuth;
+import com.adenops.moustack.agent.model.openstack.keystone.TokenResponse;
 import com.adenops.moustack.agent.util.HttpUtil;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 public abstract class AbstractOpenStackClient extends AbstractRestClient {
 	private static final Logger log = LoggerFactory.getLogger(AbstractOpenStackClient.class);
+
+	// stop using a token a bit before it expires, a deployment step can last several minutes
+	private static final long TOKEN_EXPIRATION_MARGIN_MS = 5 * 60 * 1000;
+
+	// tokens issued by keystone, shared by all the clients and kept across runs until they expire
+	private static final Map<String, CachedToken> tokens = new ConcurrentHashMap<>();
+
 	protected String token;
 
+	private static class CachedToken {
+		private final String id;
+		private final long expiresAt;
+
+		private CachedToken(String id, long expiresAt) {
+			this.id = id;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isValid() {
+			return expiresAt - TOKEN_EXPIRATION_MARGIN_MS > System.currentTimeMillis();
+		}
+	}
+
 	protected AbstractOpenStackClient(String name, String url) {
-		super(name, url, 10, 4);
+		// services are often just (re)started, give them time to come up
+		super(name, url, new RetryPolicy(10, 500, 8000));
 	}
 
 	@Override
@@ -60,6 +90,10 @@ public abstract class AbstractOpenStackClient extends AbstractRestClient {
 		if (HttpUtil.isSuccess(response))
 			return;
 
+		// our token may have been revoked (keystone redeployed, password changed), do not hand it out again
+		if (response.getStatus() == Status.UNAUTHORIZED.getStatusCode() && token != null)
+			tokens.values().removeIf(cached -> cached.id.equals(token));
+
 		// we allow extra statuses because sometimes an HTTP error is expected (for example 404)
 		for (Status status : extraAllowedStatuses) {
 			if (status.getStatusCode() == response.getStatus()) {
@@ -71,12 +105,12 @@ public abstract class AbstractOpenStackClient extends AbstractRestClient {
 		// try to parse the error returned by the API
 		Map map = readEntity(response, Map.class);
 		if (map == null || !map.containsKey("error"))
-			throw new DeploymentException("API returned error: HTTP status " + response.getStatus());
+			throw apiError(response, "API returned error: HTTP status " + response.getStatus());
 		Error error = null;
 		try {
 			error = mapper.convertValue(map.get("error"), Error.class);
 		} catch (IllegalArgumentException e) {
-			throw new DeploymentException("API returned error: HTTP status " + response.getStatus());
+			throw apiError(response, "API returned error: HTTP status " + response.getStatus());
 		}
 
 		String message = error.getMessage();
@@ -90,7 +124,14 @@ public abstract class AbstractOpenStackClient extends AbstractRestClient {
 			}
 		}
 
-		throw new DeploymentException("API returned error: {title: " + title + ", message: " + message + "}");
+		throw apiError(response, "API returned error: {title: " + title + ", message: " + message + "}");
+	}
+
+	// callers authenticating with user credentials need to tell a rejected password from other failures
+	private static DeploymentException apiError(Response response, String message) {
+		if (response.getStatus() == Status.UNAUTHORIZED.getStatusCode())
+			return new UnauthorizedException(message);
+		return new DeploymentException(message);
 	}
 
 	/**
@@ -121,6 +162,60 @@ public abstract class AbstractOpenStackClient extends AbstractRestClient {
 		}
 	}
 
+	/**
+	 * Retrieve a full collection, following the "next" links when the API paginates the results. Returns false if the
+	 * server truncated the listing (list_limit) without giving a way to fetch the remaining entries.
+	 */
+	@SuppressWarnings("rawtypes")
+	public <E> boolean getAll(String key, Class<E> clazz, String path, Map<String, String> parameters, List<E> results)
+			throws DeploymentException {
+		String basePath = webTarget.getUri().getPath();
+		while (path != null) {
+			Map map = get(Map.class, path, parameters);
+			if (map == null)
+				throw new DeploymentException(path + ": could not extract map from response");
+
+			Object entries = map.get(key);
+			if (entries == null || !(entries instanceof List))
+				throw new DeploymentException(path + ": could not extract list from response");
+
+			for (Object entry : (List) entries) {
+				try {
+					results.add(mapper.convertValue(entry, clazz));
+				} catch (IllegalArgumentException e) {
+					throw new DeploymentException(path + ": could not deserialize to class " + clazz);
+				}
+			}
+
+			Object links = map.get("links");
+			Object next = links instanceof Map ? ((Map) links).get("next") : null;
+			if (next == null) {
+				if (Boolean.TRUE.equals(map.get("truncated"))) {
+					log.debug("{}: listing truncated by the server after {} entries", path, results.size());
+					return false;
+				}
+				return true;
+			}
+
+			// the next link is absolute, translate it to a path relative to our target
+			URI nextUri = URI.create(next.toString());
+			if (!nextUri.getPath().startsWith(basePath))
+				throw new DeploymentException(path + ": unexpected next link " + next);
+			path = nextUri.getPath().substring(basePath.length());
+			parameters = new HashMap<>();
+			if (nextUri.getQuery() != null) {
+				for (String parameter : nextUri.getQuery().split("&")) {
+					int index = parameter.indexOf('=');
+					if (index < 0)
+						parameters.put(parameter, "");
+					else
+						parameters.put(parameter.substring(0, index), parameter.substring(index + 1));
+				}
+			}
+		}
+		return true;
+	}
+
 	public <E extends BaseResponse> E post(Class<E> clazz, String path, String key, Object object)
 			throws DeploymentException {
 		// XXX: workaround to ensure we are not posting en entry with an id
@@ -138,4 +233,67 @@ public abstract class AbstractOpenStackClient extends AbstractRestClient {
 		Object data = key == null ? object : Collections.singletonMap(key, object);
 		super.patch(path, data);
 	}
+
+	private static String getTokenKey(KeystoneClient keystoneClient, String user, String password, String domainId) {
+		return String.join("|", keystoneClient.webTarget.getUri().toString(), domainId, user,
+				DigestUtils.sha256Hex(password));
+	}
+
+	/**
+	 * Get a token for the given credentials. A token previously issued for the same credentials is reused until
+	 * shortly before its expiration, clients should always get their token from here.
+	 */
+	protected static String getToken(KeystoneClient keystoneClient, String user, String password, String domainId)
+			throws DeploymentException {
+		String cached = getCachedToken(keystoneClient, user, password, domainId);
+		if (cached != null) {
+			log.debug("reusing token for user {}", user);
+			return cached;
+		}
+		return issueToken(keystoneClient, user, password, domainId);
+	}
+
+	/**
+	 * Return the token cached for the given credentials if it did not expire, without checking it against keystone.
+	 */
+	protected static String getCachedToken(KeystoneClient keystoneClient, String user, String password,
+			String domainId) {
+		CachedToken cached = tokens.get(getTokenKey(keystoneClient, user, password, domainId));
+		return cached != null && cached.isValid() ? cached.id : null;
+	}
+
+	/**
+	 * Authenticate against keystone, bypassing the cache. The token is stored for later calls to getToken. Throws
+	 * UnauthorizedException if keystone rejected the credentials.
+	 */
+	protected static String issueToken(KeystoneClient keystoneClient, String user, String password, String domainId)
+			throws DeploymentException {
+		TokenResponse response = keystoneClient.post(TokenResponse.class, "auth/tokens", "auth",
+				new OSAuth(user, password, domainId));
+		String id = (String) response.getHeaders().getFirst("X-Subject-Token");
+		if (id == null)
+			throw new DeploymentException("keystone did not return a token for user " + user);
+
+		String expiresAt = response.getToken() != null ? response.getToken().getExpires_at() : null;
+		if (expiresAt == null) {
+			log.debug("no expiration for token of user {}, not caching it", user);
+			return id;
+		}
+
+		try {
+			long expiration = OffsetDateTime.parse(expiresAt).toInstant().toEpochMilli();
+			tokens.put(getTokenKey(keystoneClient, user, password, domainId), new CachedToken(id, expiration));
+		} catch (DateTimeParseException e) {
+			log.debug("cannot parse expiration {} of token for user {}, not caching it", expiresAt, user);
+		}
+		return id;
+	}
+
+	/**
+	 * Forget the tokens of a user, called when the user is deleted.
+	 */
+	protected static void invalidateTokens(KeystoneClient keystoneClient, String user, String domainId) {
+		String prefix = String.join("|", keystoneClient.webTarget.getUri().toString(), domainId, user) + "|";
+		tokens.keySet().removeIf(key -> key.startsWith(prefix));
+	}
 }
@@ -19,12 +19,219 @@
 
 package com.adenops.moustack.agent.client;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.adenops.moustack.agent.DeploymentException;
 
+// the package manager invocations are serialized here, modules are deployed concurrently
 public abstract class AbstractPackagingClient {
+	private static final Logger log = LoggerFactory.getLogger(AbstractPackagingClient.class);
+
+	// background operations (prefetch, plan transaction), executed in submission order. Shared by the clients of
+	// all the runs, a daemon builds a new client for each of them.
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "packages");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// plan transaction running in background, the modules wait for it before installing anything
+	private volatile Future<?> pendingTransaction;
+
+	// outcome of the plan transaction: package specification -> changed
+	private final Map<String, Boolean> preparedInstalls = new HashMap<>();
+	private final Map<String, Boolean> preparedRemovals = new HashMap<>();
+
 	public abstract void init() throws DeploymentException;
 
-	public abstract boolean install(String... packages) throws DeploymentException;
+	// returns the names of the packages installed, upgraded, downgraded or locked
+	protected abstract Set<String> installPackages(String... packages) throws DeploymentException;
+
+	// returns the names of the packages removed
+	protected abstract Set<String> removePackages(String... packages) throws DeploymentException;
+
+	// download the packages that would be installed or upgraded, without installing them
+	protected abstract void prefetchPackages(String... packages) throws DeploymentException;
+
+	// installed packages list, one package per line, for the system report
+	public abstract String getInstalledPackages() throws DeploymentException;
+
+	private static String getName(String pkg) {
+		return pkg.split("=", 2)[0];
+	}
+
+	/**
+	 * Install and remove the packages of the whole deployment plan with a single transaction of each kind. The
+	 * modules install() and remove() calls are then answered from the outcome of this transaction.
+	 *
+	 * Packages required with different versions, or both installed and removed, are left to the modules so they
+	 * are still handled in the plan order.
+	 */
+	public synchronized void prepareTransaction(Collection<String> installs, Collection<String> removals)
+			throws DeploymentException {
+		preparedInstalls.clear();
+		preparedRemovals.clear();
+
+		Map<String, String> specifications = new LinkedHashMap<>();
+		Set<String> conflicts = new LinkedHashSet<>();
+		for (String pkg : installs) {
+			String previous = specifications.putIfAbsent(getName(pkg), pkg);
+			if (previous != null && !previous.equals(pkg))
+				conflicts.add(getName(pkg));
+		}
+		for (String pkg : removals) {
+			if (specifications.containsKey(pkg))
+				conflicts.add(pkg);
+		}
+		if (!conflicts.isEmpty())
+			log.debug("packages {} will be handled by their modules", conflicts);
+
+		List<String> toInstall = new ArrayList<>();
+		for (String pkg : specifications.values())
+			if (!conflicts.contains(getName(pkg)))
+				toInstall.add(pkg);
+
+		List<String> toRemove = new ArrayList<>();
+		for (String pkg : new LinkedHashSet<>(removals))
+			if (!conflicts.contains(pkg))
+				toRemove.add(pkg);
+
+		// same order as the modules: removals first, they may conflict with the installed packages
+		Set<String> removed = removePackages(toRemove.toArray(new String[toRemove.size()]));
+		for (String pkg : toRemove)
+			preparedRemovals.put(pkg, removed.contains(pkg));
+
+		Set<String> changed = installPackages(toInstall.toArray(new String[toInstall.size()]));
+		for (String pkg : toInstall)
+			preparedInstalls.put(pkg, changed.contains(getName(pkg)));
+	}
+
+	/**
+	 * Download the packages in background, so the install only has to unpack them from the local cache.
+	 */
+	public void prefetch(String... packages) {
+		if (packages.length == 0)
+			return;
+
+		executor.submit(() -> {
+			long start = System.currentTimeMillis();
+			try {
+				synchronized (this) {
+					prefetchPackages(packages);
+				}
+				log.debug("packages prefetched in {}ms", System.currentTimeMillis() - start);
+			} catch (Throwable e) {
+				log.warn("could not prefetch packages: " + e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Same as prepareTransaction(), but executed in background after the pending prefetch. The install() and
+	 * remove() calls block until it completes.
+	 */
+	public void prepareTransactionAsync(Collection<String> installs, Collection<String> removals) {
+		List<String> installsCopy = new ArrayList<>(installs);
+		List<String> removalsCopy = new ArrayList<>(removals);
+		pendingTransaction = executor.submit(() -> {
+			try {
+				prepareTransaction(installsCopy, removalsCopy);
+			} catch (Throwable e) {
+				log.warn("packages transaction failed, packages will be installed by each module: " + e.getMessage());
+			}
+		});
+	}
+
+	private void awaitTransaction() throws DeploymentException {
+		Future<?> transaction = pendingTransaction;
+		if (transaction == null)
+			return;
+
+		try {
+			transaction.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DeploymentException("interrupted while waiting for the packages transaction", e);
+		} catch (ExecutionException e) {
+			// failures are handled by the task itself
+		}
+	}
+
+	/**
+	 * Return true if the plan transaction installed, upgraded or removed one of these packages. The module owning
+	 * them must be deployed again even if its configuration did not change.
+	 */
+	public boolean isChangedByTransaction(Collection<String> installs, Collection<String> removals)
+			throws DeploymentException {
+		awaitTransaction();
+		synchronized (this) {
+			for (String pkg : installs)
+				if (Boolean.TRUE.equals(preparedInstalls.get(pkg)))
+					return true;
+			for (String pkg : removals)
+				if (Boolean.TRUE.equals(preparedRemovals.get(pkg)))
+					return true;
+			return false;
+		}
+	}
+
+	public boolean install(String... packages) throws DeploymentException {
+		awaitTransaction();
+		synchronized (this) {
+			return installPrepared(packages);
+		}
+	}
+
+	public boolean remove(String... packages) throws DeploymentException {
+		awaitTransaction();
+		synchronized (this) {
+			return removePrepared(packages);
+		}
+	}
+
+	private boolean installPrepared(String... packages) throws DeploymentException {
+		boolean changed = false;
+		List<String> pending = new ArrayList<>();
+		for (String pkg : packages) {
+			Boolean prepared = preparedInstalls.get(pkg);
+			if (prepared == null)
+				pending.add(pkg);
+			else
+				changed |= prepared;
+		}
+
+		if (!pending.isEmpty())
+			changed |= !installPackages(pending.toArray(new String[pending.size()])).isEmpty();
+		return changed;
+	}
+
+	private boolean removePrepared(String... packages) throws DeploymentException {
+		boolean changed = false;
+		List<String> pending = new ArrayList<>();
+		for (String pkg : packages) {
+			Boolean prepared = preparedRemovals.get(pkg);
+			if (prepared == null)
+				pending.add(pkg);
+			else
+				changed |= prepared;
+		}
 
-	public abstract boolean remove(String... packages) throws DeploymentException;
+		if (!pending.isEmpty())
+			changed |= !removePackages(pending.toArray(new String[pending.size()])).isEmpty();
+		return changed;
+	}
 }
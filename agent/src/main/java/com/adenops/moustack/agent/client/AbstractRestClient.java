@@ -19,17 +19,13 @@
 
 package com.adenops.moustack.agent.client;
 
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
-import javax.net.ssl.SSLContext;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.Invocation.Builder;
@@ -38,15 +34,12 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
-import org.glassfish.jersey.client.HttpUrlConnectorProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentException;
-import com.adenops.moustack.agent.config.AgentConfig;
 import com.adenops.moustack.agent.model.openstack.BaseResponse;
 import com.adenops.moustack.agent.util.HttpUtil;
-import com.adenops.moustack.agent.util.HttpUtil.TrustAllHostNameVerifier;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -60,42 +53,22 @@ public abstract class AbstractRestClient {
 	protected WebTarget webTarget;
 	protected final Client client;
 	protected final ObjectMapper mapper;
-	private final int maxRetries;
-	private final int retryWait;
+	private final RetryPolicy retryPolicy;
 
-	protected AbstractRestClient(String name, String url, int maxRetries, int retryWait) {
+	protected AbstractRestClient(String name, String url, RetryPolicy retryPolicy) {
 		log.debug("initializing REST client [{}]", name);
 
 		this.name = name;
-		this.maxRetries = maxRetries;
-		this.retryWait = retryWait;
-
-		ClientBuilder clientBuilder = ClientBuilder.newBuilder();
-
-		// disable SSL verification if requested
-		if (!AgentConfig.getInstance().isSslVerify()) {
-			clientBuilder.hostnameVerifier(new TrustAllHostNameVerifier());
-			try {
-				SSLContext ctx = SSLContext.getInstance("SSL");
-				ctx.init(null, HttpUtil.certs, new SecureRandom());
-				clientBuilder.sslContext(ctx);
-			} catch (KeyManagementException | NoSuchAlgorithmException e) {
-				// not clean, but easier to throw a runtime exception here
-				throw new RuntimeException("cannot initialize SSl context", e);
-			}
-		}
+		this.retryPolicy = retryPolicy;
 
 		// add our Jackson customizations
 		JacksonJsonProvider jacksonJsonProvider = new JacksonJaxbJsonProvider()
 				.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
-		// build the client and register Jackson
-		client = clientBuilder.build();
+		// build the client on the shared connection pool and register Jackson
+		client = HttpTransport.getInstance().newClient();
 		client.register(jacksonJsonProvider);
 
-		// allow patch method
-		client.property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
-
 		// create the base target
 		webTarget = client.target(url);
 
@@ -187,6 +160,40 @@ public abstract class AbstractRestClient {
 		throw new DeploymentException("API returned error: HTTP status " + response.getStatus());
 	}
 
+	/**
+	 * Single execution path for all requests: retry connection errors according to the retry policy, within the
+	 * run budget, unless the endpoint circuit is open.
+	 */
+	private Response execute(WebTarget target, Supplier<Response> request) throws DeploymentException {
+		CircuitBreaker circuitBreaker = CircuitBreaker.get(target.getUri());
+		circuitBreaker.check();
+
+		for (int retry = 0;; retry++) {
+			try {
+				Response response = request.get();
+				circuitBreaker.success();
+				return response;
+			} catch (ProcessingException e) {
+				if (retry >= retryPolicy.getMaxRetries() || !RetryBudget.acquire()) {
+					circuitBreaker.failure();
+					throw new DeploymentException("connection error with [" + name + "] API (after " + retry
+							+ " retries): " + target.getUri(), e);
+				}
+
+				long wait = retryPolicy.getWait(retry);
+				log.debug("failed to connect to [{}], waiting {}ms ({})", name, wait, e.getMessage());
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					throw new DeploymentException("interrupted while waiting for [" + name + "] API", e1);
+				} finally {
+					RetryBudget.recordSleep(wait);
+				}
+			}
+		}
+	}
+
 	public <E> E get(Class<E> clazz, String path, Map<String, String> parameters) throws DeploymentException {
 
 		WebTarget target = webTarget.path(path);
@@ -199,30 +206,23 @@ public abstract class AbstractRestClient {
 
 		preprocessRequest("GET", target);
 
-		Response response = null;
-		for (int i = 0; i <= maxRetries; i++) {
-			try {
-				response = invocationBuilder.get();
-				break;
-			} catch (ProcessingException e) {
-				if (i == maxRetries)
-					throw new DeploymentException(
-							"connection error with [" + name + "] API (after " + maxRetries + " retries): " + target);
+		Response response = execute(target, invocationBuilder::get);
 
-				log.debug("failed to connect to [{}], waiting {}s ({})", name, retryWait, e.getMessage());
-				try {
-					Thread.sleep(retryWait * 1000);
-				} catch (InterruptedException e1) {
-				}
-			}
+		try {
+			preprocessResponse(response);
+			return readEntity(response, clazz);
+		} finally {
+			// release the connection to the pool
+			response.close();
 		}
-
-		preprocessResponse(response);
-
-		return readEntity(response, clazz);
 	}
 
 	public boolean head(String path, Map<String, String> parameters) throws DeploymentException {
+		return head(path, parameters, null);
+	}
+
+	public boolean head(String path, Map<String, String> parameters, Map<String, String> headers)
+			throws DeploymentException {
 
 		WebTarget target = webTarget.path(path);
 		if (parameters != null)
@@ -230,28 +230,20 @@ public abstract class AbstractRestClient {
 				target = target.queryParam(parameter.getKey(), parameter.getValue());
 		Invocation.Builder invocationBuilder = target.request(MediaType.APPLICATION_JSON_TYPE);
 		setHeaders(invocationBuilder);
+		if (headers != null)
+			for (Entry<String, String> header : headers.entrySet())
+				invocationBuilder.header(header.getKey(), header.getValue());
 
 		preprocessRequest("HEAD", target);
 
-		Response response = null;
-		for (int i = 0; i <= maxRetries; i++) {
-			try {
-				response = invocationBuilder.head();
-				break;
-			} catch (ProcessingException e) {
-				if (i == maxRetries)
-					throw new DeploymentException("connection error with [" + name + "] API");
+		Response response = execute(target, invocationBuilder::head);
 
-				log.debug("failed to connect to [{}], waiting {}s", name, retryWait);
-				try {
-					Thread.sleep(retryWait * 1000);
-				} catch (InterruptedException e1) {
-				}
-			}
+		try {
+			preprocessResponse(response, Status.NOT_FOUND);
+		} finally {
+			response.close();
 		}
 
-		preprocessResponse(response, Status.NOT_FOUND);
-
 		if (HttpUtil.isSuccess(response))
 			return true;
 
@@ -266,26 +258,14 @@ public abstract class AbstractRestClient {
 
 		preprocessRequest("PUT", target);
 
-		Response response = null;
-		for (int i = 0; i <= maxRetries; i++) {
-			try {
-				response = invocationBuilder.put(Entity.entity("", MediaType.APPLICATION_JSON_TYPE));
-				break;
-			} catch (ProcessingException e) {
-				if (i == maxRetries)
-					throw new DeploymentException("connection error with [" + name + "] API");
+		Response response = execute(target,
+				() -> invocationBuilder.put(Entity.entity("", MediaType.APPLICATION_JSON_TYPE)));
 
-				log.debug("failed to connect to [{}], waiting {}s", name, retryWait);
-				try {
-					Thread.sleep(retryWait * 1000);
-				} catch (InterruptedException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
-			}
+		try {
+			preprocessResponse(response);
+		} finally {
+			response.close();
 		}
-
-		preprocessResponse(response);
 	}
 
 	public void delete(String path) throws DeploymentException {
@@ -296,24 +276,13 @@ public abstract class AbstractRestClient {
 
 		preprocessRequest("DELETE", target);
 
-		Response response = null;
-		for (int i = 0; i <= maxRetries; i++) {
-			try {
-				response = invocationBuilder.delete();
-				break;
-			} catch (ProcessingException e) {
-				if (i == maxRetries)
-					throw new DeploymentException("connection error with [" + name + "] API");
+		Response response = execute(target, invocationBuilder::delete);
 
-				log.debug("failed to connect to [{}], waiting {}s", name, retryWait);
-				try {
-					Thread.sleep(retryWait * 1000);
-				} catch (InterruptedException e1) {
-				}
-			}
+		try {
+			preprocessResponse(response);
+		} finally {
+			response.close();
 		}
-
-		preprocessResponse(response);
 	}
 
 	public <E extends BaseResponse> E post(Class<E> clazz, String path, Object data) throws DeploymentException {
@@ -324,36 +293,26 @@ public abstract class AbstractRestClient {
 
 		preprocessRequest("POST", target, data);
 
-		Response response = null;
-		for (int i = 0; i <= maxRetries; i++) {
-			try {
-				response = invocationBuilder.post(Entity.entity(data, MediaType.APPLICATION_JSON_TYPE));
-				break;
-			} catch (ProcessingException e) {
-				if (i == maxRetries)
-					throw new DeploymentException("connection error with [" + name + "] API");
+		Response response = execute(target,
+				() -> invocationBuilder.post(Entity.entity(data, MediaType.APPLICATION_JSON_TYPE)));
 
-				log.debug("failed to connect to [{}], waiting {}s", name, retryWait);
-				try {
-					Thread.sleep(retryWait * 1000);
-				} catch (InterruptedException e1) {
-				}
-			}
-		}
+		try {
+			preprocessResponse(response);
 
-		preprocessResponse(response);
+			E result = readEntity(response, clazz);
 
-		E result = readEntity(response, clazz);
+			if (result == null) {
+				// TODO: should it be a warn? and error?
+				// XXX: only for moustack server, should be fixed
+				log.trace("the server returned no response body");
+				return null;
+			}
 
-		if (result == null) {
-			// TODO: should it be a warn? and error?
-			// XXX: only for moustack server, should be fixed
-			log.trace("the server returned no response body");
-			return null;
+			result.setHeaders(response.getHeaders());
+			return result;
+		} finally {
+			response.close();
 		}
-
-		result.setHeaders(response.getHeaders());
-		return result;
 	}
 
 	public void patch(String path, Object data) throws DeploymentException {
@@ -364,24 +323,14 @@ public abstract class AbstractRestClient {
 
 		preprocessRequest("PATCH", target, data);
 
-		Response response = null;
-		for (int i = 0; i <= maxRetries; i++) {
-			try {
-				response = invocationBuilder.method("PATCH", Entity.entity(data, MediaType.APPLICATION_JSON_TYPE));
-				break;
-			} catch (ProcessingException e) {
-				if (i == maxRetries)
-					throw new DeploymentException("connection error with [" + name + "] API");
+		Response response = execute(target,
+				() -> invocationBuilder.method("PATCH", Entity.entity(data, MediaType.APPLICATION_JSON_TYPE)));
 
-				log.debug("failed to connect to [{}], waiting {}s", name, retryWait);
-				try {
-					Thread.sleep(retryWait * 1000);
-				} catch (InterruptedException e1) {
-				}
-			}
+		try {
+			preprocessResponse(response);
+		} finally {
+			response.close();
 		}
-
-		preprocessResponse(response);
 	}
 
 	public Response longPoll(String path) throws DeploymentException {
@@ -398,6 +347,8 @@ public abstract class AbstractRestClient {
 
 		// for long polling, we consider timeout not an error
 		if (!HttpUtil.isSuccess(response) && !response.getStatusInfo().equals(Response.Status.REQUEST_TIMEOUT)) {
+			// release the pooled connection, the caller only gets the exception
+			response.close();
 			throw new DeploymentException("GET request " + target.getUri() + " returned HTTP code "
 					+ response.getStatus() + " (" + response.getStatusInfo() + ")");
 		}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.module.ContainerModule;
+
+/**
+ * Runs the bootstrap steps of a module (database migrations, etc.) with docker exec in a single short-lived
+ * container started from the module image and configuration. The container is removed when the runner is closed.
+ */
+public class BootstrapRunner implements AutoCloseable {
+	private final DockerLocalClient dockerClient;
+	private final ContainerModule container;
+
+	BootstrapRunner(DockerLocalClient dockerClient, ContainerModule container) {
+		this.dockerClient = dockerClient;
+		this.container = container;
+	}
+
+	/**
+	 * Execute a step, the command is interpreted by /bin/sh, its output is logged as it goes.
+	 */
+	public void run(String user, String... command) throws DeploymentException {
+		dockerClient.exec(container.getName(), user, command);
+	}
+
+	@Override
+	public void close() throws DeploymentException {
+		dockerClient.forceRemoveContainer(container);
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.DeploymentException;
+
+/**
+ * Per endpoint circuit breaker: after consecutive calls failing with a connection error (all their retries
+ * exhausted), the following calls fail immediately for a while instead of retrying again. Once that period is over a
+ * single call probes the endpoint, the others keep failing fast until it closes or reopens the circuit.
+ */
+public class CircuitBreaker {
+	private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	private static final int FAILURE_THRESHOLD = 2;
+	private static final long OPEN_DURATION_MS = 30000;
+
+	// a probe that never reported (i.e. interrupted) does not keep the circuit half-open forever
+	private static final long PROBE_TIMEOUT_MS = 2 * OPEN_DURATION_MS;
+
+	private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String endpoint;
+	private State state = State.CLOSED;
+	private int failures;
+	private long openUntil;
+	private long probeStartedAt;
+
+	private CircuitBreaker(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	public static CircuitBreaker get(URI uri) {
+		return breakers.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(), CircuitBreaker::new);
+	}
+
+	/**
+	 * Close all the circuits, called at the beginning of a run.
+	 */
+	public static void reset() {
+		breakers.clear();
+	}
+
+	public synchronized void check() throws DeploymentException {
+		long now = System.currentTimeMillis();
+		switch (state) {
+		case CLOSED:
+			return;
+		case OPEN:
+			long remaining = openUntil - now;
+			if (remaining > 0)
+				reject("not trying again for " + remaining / 1000 + "s");
+			break;
+		case HALF_OPEN:
+			if (now - probeStartedAt < PROBE_TIMEOUT_MS)
+				reject("waiting for the probe in progress");
+			break;
+		}
+
+		// the caller is the probe, its outcome closes or reopens the circuit
+		log.debug("endpoint {} circuit half-open, probing", endpoint);
+		state = State.HALF_OPEN;
+		probeStartedAt = now;
+	}
+
+	private void reject(String reason) throws DeploymentException {
+		RetryBudget.recordRejection();
+		throw new DeploymentException("endpoint " + endpoint + " is unreachable, " + reason);
+	}
+
+	public synchronized void success() {
+		if (state != State.CLOSED)
+			log.info("endpoint {} reachable again", endpoint);
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	public synchronized void failure() {
+		failures++;
+		if (state != State.HALF_OPEN && failures < FAILURE_THRESHOLD)
+			return;
+
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + OPEN_DURATION_MS;
+		log.warn("endpoint {} failed {} times in a row, failing fast for {}s", endpoint, failures,
+				OPEN_DURATION_MS / 1000);
+	}
+}
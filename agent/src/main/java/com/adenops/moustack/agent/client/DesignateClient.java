@@ -30,16 +30,13 @@ import com.adenops.moustack.agent.model.openstack.designate.Domain;
 import com.adenops.moustack.agent.model.openstack.designate.DomainsResponse;
 import com.adenops.moustack.agent.model.openstack.designate.Server;
 import com.adenops.moustack.agent.model.openstack.designate.ServersResponse;
-import com.adenops.moustack.agent.model.openstack.keystone.TokenResponse;
 
 public class DesignateClient extends AbstractOpenStackClient {
 	private static final Logger log = LoggerFactory.getLogger(DesignateClient.class);
 
 	public DesignateClient(StackConfig stack, KeystoneClient keystoneClient) throws DeploymentException {
 		super("designate", String.format("http://%s:9001/v1", stack.get(StackProperty.CONTROLLER_MANAGEMENT_IP)));
-		TokenResponse response = keystoneClient.getAdminToken(stack);
-		token = (String) response.getHeaders().getFirst("X-Subject-Token");
-		log.debug("got token {}", token);
+		token = keystoneClient.getAdminToken(stack);
 	}
 
 	private Server getServer(StackConfig stack, String name) throws DeploymentException {
@@ -19,15 +19,36 @@
 
 package com.adenops.moustack.agent.client;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -35,36 +56,94 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.config.AgentConfig;
 import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.docker.Volume;
 import com.adenops.moustack.agent.module.ContainerModule;
 import com.adenops.moustack.agent.util.PathUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.spotify.docker.client.DefaultDockerClient;
 import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.EventsParam;
+import com.spotify.docker.client.DockerClient.ExecCreateParam;
+import com.spotify.docker.client.DockerClient.ListContainersParam;
+import com.spotify.docker.client.DockerClient.RemoveContainerParam;
+import com.spotify.docker.client.EventStream;
+import com.spotify.docker.client.LogStream;
 import com.spotify.docker.client.exceptions.ContainerNotFoundException;
 import com.spotify.docker.client.exceptions.DockerCertificateException;
 import com.spotify.docker.client.exceptions.DockerException;
 import com.spotify.docker.client.exceptions.DockerRequestException;
 import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.exceptions.ImagePullFailedException;
+import com.spotify.docker.client.messages.Container;
 import com.spotify.docker.client.messages.ContainerConfig;
 import com.spotify.docker.client.messages.ContainerCreation;
-import com.spotify.docker.client.messages.ContainerExit;
 import com.spotify.docker.client.messages.ContainerInfo;
 import com.spotify.docker.client.messages.Device;
+import com.spotify.docker.client.messages.Event;
+import com.spotify.docker.client.messages.ExecCreation;
 import com.spotify.docker.client.messages.HostConfig;
 import com.spotify.docker.client.messages.HostConfig.RestartPolicy;
 import com.spotify.docker.client.messages.ImageInfo;
 import com.spotify.docker.client.messages.Info;
 import com.spotify.docker.client.messages.LogConfig;
+import com.spotify.docker.client.messages.ProgressDetail;
+import com.spotify.docker.client.messages.TopResults;
 
-public class DockerLocalClient {
+public class DockerLocalClient implements AutoCloseable {
 	private static final Logger log = LoggerFactory.getLogger(DockerLocalClient.class);
 	private static final int STOP_TIMEOUT_SECONDS = 10;
 	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private static final String FINGERPRINT_LABEL = "com.adenops.moustack.fingerprint";
+	// sorted keys so the serialization is canonical
+	private static final ObjectMapper FINGERPRINT_MAPPER = new ObjectMapper()
+			.configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+			.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+	private static final int READY_TIMEOUT_SECONDS = 60;
+	private static final String BOOTSTRAP_SUFFIX = "-bootstrap-";
+	private static final String[] BOOTSTRAP_COMMAND = new String[] { "tail", "-f", "/dev/null" };
+	private static final long BOOTSTRAP_POLL_MS = 100;
 	private final DockerClient client;
 	private final StackConfig stack;
 
+	// readiness of the containers started during this run, completed by the events listener
+	private final Map<String, CompletableFuture<Void>> readiness = new ConcurrentHashMap<>();
+	// ids of the containers started during this run, events of the previous instances are ignored
+	private final Map<String, String> containerIds = new ConcurrentHashMap<>();
+	// containers that died since we started them
+	private final Map<String, String> failures = new ConcurrentHashMap<>();
+	// containers whose image defines a healthcheck, they are ready once healthy
+	private final Set<String> healthchecked = ConcurrentHashMap.newKeySet();
+
+	// Docker state snapshot: loaded with a single containers listing on first use, then updated as we modify
+	// containers and images. A missing entry in the containers map means the container does not exist.
+	private final Map<String, ContainerInfo> containers = new ConcurrentHashMap<>();
+	private final Map<String, Optional<ImageInfo>> images = new ConcurrentHashMap<>();
+	private volatile boolean snapshotLoaded = false;
+
+	// events stream of this client, closed with it
+	private volatile EventStream events;
+	private volatile boolean closed = false;
+
+	// image pulls of the current run (an image is pulled at most once), limited per registry
+	private final Map<String, Future<?>> pulls = new ConcurrentHashMap<>();
+	private final Map<String, Semaphore> registryPulls = new ConcurrentHashMap<>();
+	private final ExecutorService pullExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "image-pull-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	private void wrapDockerException(String message, DockerException e) throws DeploymentException {
 		if (e == null)
 			throw new DeploymentException(message);
@@ -94,6 +173,114 @@ public class DockerLocalClient {
 		} catch (InterruptedException e) {
 			interrupt(e);
 		}
+
+		startEventsListener();
+	}
+
+	/**
+	 * Stop following the events and release the connections to the Docker daemon. A client is used for one run (and
+	 * the reports until the next one).
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		EventStream stream = events;
+		if (stream != null)
+			stream.close();
+		pullExecutor.shutdownNow();
+		client.close();
+	}
+
+	/*
+	 * Follow the events of the containers we manage (they all carry the fingerprint label). If the stream cannot
+	 * be opened, readiness falls back to inspecting the containers.
+	 */
+	private void startEventsListener() {
+		Thread thread = new Thread(() -> {
+			try (EventStream stream = client.events(EventsParam.type(Event.Type.CONTAINER),
+					EventsParam.label(FINGERPRINT_LABEL))) {
+				events = stream;
+				if (closed)
+					return;
+				while (stream.hasNext())
+					handleEvent(stream.next());
+			} catch (Exception e) {
+				log.debug("Docker events stream closed: " + e.getMessage());
+			}
+		}, "docker-events");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void handleEvent(Event event) {
+		if (event.actor() == null || event.actor().attributes() == null)
+			return;
+
+		String name = event.actor().attributes().get("name");
+		if (name == null || !StringUtils.equals(event.actor().id(), containerIds.get(name)))
+			return;
+
+		CompletableFuture<Void> ready = readiness.get(name);
+		if (ready == null)
+			return;
+
+		// daemons older than API 1.22 do not set the action, readiness then falls back to inspecting the container
+		String action = event.action();
+		if (action == null)
+			return;
+		log.trace("container {} event: {}", name, action);
+
+		switch (action) {
+		case "start":
+			if (!healthchecked.contains(name))
+				ready.complete(null);
+			break;
+		case "health_status: healthy":
+			ready.complete(null);
+			break;
+		case "health_status: unhealthy":
+			ready.completeExceptionally(new DeploymentException("container " + name + " is unhealthy"));
+			break;
+		case "die":
+			String failure = "container " + name + " died with exit code " + event.actor().attributes().get("exitCode");
+			failures.put(name, failure);
+			ready.completeExceptionally(new DeploymentException(failure));
+			break;
+		}
+	}
+
+	/**
+	 * Wait for a container we started to be up (and healthy if its image has a healthcheck), fails as soon as the
+	 * container dies.
+	 */
+	public void awaitReady(ContainerModule container) throws DeploymentException {
+		CompletableFuture<Void> ready = readiness.get(container.getName());
+		if (ready != null) {
+			try {
+				ready.get(READY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				return;
+			} catch (ExecutionException e) {
+				throw (DeploymentException) e.getCause();
+			} catch (TimeoutException e) {
+				log.debug("container {} not ready after {}s, checking its state", container.getName(),
+						READY_TIMEOUT_SECONDS);
+				refreshContainer(container.getName());
+			} catch (InterruptedException e) {
+				interrupt(e);
+			}
+		}
+
+		if (!containerIsRunning(container))
+			throw new DeploymentException("container " + container.getName() + " is not running");
+	}
+
+	/**
+	 * Fails if the container died since we started it, no request is made to the Docker daemon.
+	 */
+	public void checkAlive(ContainerModule container) throws DeploymentException {
+		String failure = failures.get(container.getName());
+		if (failure != null)
+			throw new DeploymentException(failure);
 	}
 
 	private void interrupt(InterruptedException e) throws DeploymentException {
@@ -131,32 +318,102 @@ public class DockerLocalClient {
 		return environment;
 	}
 
-	public boolean containerIsRunning(ContainerModule container) throws DeploymentException {
+	private void loadSnapshot() throws DeploymentException {
+		if (snapshotLoaded)
+			return;
+
+		synchronized (containers) {
+			if (snapshotLoaded)
+				return;
+
+			try {
+				List<Container> list = client.listContainers(ListContainersParam.allContainers());
+				for (Container container : list) {
+					try {
+						ContainerInfo info = client.inspectContainer(container.id());
+						containers.put(StringUtils.removeStart(info.name(), "/"), info);
+					} catch (ContainerNotFoundException e) {
+						// removed in the meantime
+					}
+				}
+				log.debug("loaded state of {} containers", containers.size());
+			} catch (DockerException e) {
+				wrapDockerException("error while listing containers", e);
+			} catch (InterruptedException e) {
+				interrupt(e);
+			}
+
+			snapshotLoaded = true;
+		}
+	}
+
+	/*
+	 * Refresh the snapshot after a container has been created or started.
+	 */
+	private void refreshContainer(String name) throws DeploymentException {
 		try {
-			ContainerInfo info = client.inspectContainer(container.getName());
-			return info.state().running();
+			containers.put(name, client.inspectContainer(name));
 		} catch (ContainerNotFoundException e) {
-			return false;
+			containers.remove(name);
 		} catch (DockerException e) {
-			wrapDockerException("error while checking if container " + container.getName() + " is running", e);
+			wrapDockerException("error while inspecting container " + name, e);
 		} catch (InterruptedException e) {
 			interrupt(e);
 		}
-		return false;
 	}
 
-	private boolean containerConfigChanged(ContainerModule container) throws DeploymentException {
-		ContainerInfo info = null;
+	/**
+	 * @return the container information from the snapshot or null if the container does not exist
+	 */
+	private ContainerInfo getContainer(String name) throws DeploymentException {
+		loadSnapshot();
+		return containers.get(name);
+	}
+
+	/**
+	 * @return the image information (cached) or null if the image is not present
+	 */
+	private ImageInfo getImage(String imageFullName) throws DeploymentException {
+		Optional<ImageInfo> cached = images.get(imageFullName);
+		if (cached != null)
+			return cached.orElse(null);
+
+		ImageInfo info = null;
 		try {
-			info = client.inspectContainer(container.getName());
-		} catch (ContainerNotFoundException e) {
-			return true;
+			info = client.inspectImage(imageFullName);
+		} catch (ImageNotFoundException e) {
+			// not present
 		} catch (DockerException e) {
-			wrapDockerException("error while checking if container " + container.getName() + " is running", e);
+			wrapDockerException("error while inspecting image " + imageFullName, e);
 		} catch (InterruptedException e) {
 			interrupt(e);
 		}
 
+		images.put(imageFullName, Optional.ofNullable(info));
+		return info;
+	}
+
+	public boolean containerIsRunning(ContainerModule container) throws DeploymentException {
+		ContainerInfo info = getContainer(container.getName());
+		return info != null && info.state().running();
+	}
+
+	private boolean containerConfigChanged(ContainerModule container) throws DeploymentException {
+		ContainerInfo info = getContainer(container.getName());
+		if (info == null)
+			return true;
+
+		Map<String, String> labels = info.config().labels();
+		String fingerprint = labels == null ? null : labels.get(FINGERPRINT_LABEL);
+		if (fingerprint != null) {
+			if (fingerprint.equals(getConfigFingerprint(buildContainerConfig(container, false).build())))
+				return false;
+			log.info("container {} configuration changed", container.getName());
+			return true;
+		}
+
+		// containers created before the fingerprint label, compare the configuration field by field
+
 		HostConfig hostConfig = info.hostConfig();
 		ContainerConfig containerConfig = info.config();
 
@@ -216,60 +473,135 @@ public class DockerLocalClient {
 		return false;
 	}
 
+	private static String getRegistry(ContainerModule container) {
+		return StringUtils.defaultIfBlank(container.getImageRegistry(), "docker.io");
+	}
+
+	private void pull(String imageFullName, String registry) throws DeploymentException {
+		Semaphore semaphore = registryPulls.computeIfAbsent(registry,
+				r -> new Semaphore(Math.max(1, AgentConfig.getInstance().getRegistryPulls())));
+
+		try {
+			semaphore.acquire();
+		} catch (InterruptedException e) {
+			interrupt(e);
+		}
+
+		try {
+			long start = System.currentTimeMillis();
+
+			// compressed size of the downloaded layers
+			Map<String, Long> layers = new HashMap<>();
+			client.pull(imageFullName, message -> {
+				if (message.error() != null)
+					throw new ImagePullFailedException(imageFullName, message.error());
+				ProgressDetail detail = message.progressDetail();
+				if ("Downloading".equals(message.status()) && message.id() != null && detail != null
+						&& detail.total() != null)
+					layers.put(message.id(), detail.total());
+			});
+
+			long bytes = layers.values().stream().mapToLong(Long::longValue).sum();
+			log.info("pulled image {} ({}) in {}ms", imageFullName, FileUtils.byteCountToDisplaySize(bytes),
+					System.currentTimeMillis() - start);
+		} catch (DockerException e) {
+			wrapDockerException("error while pulling image " + imageFullName, e);
+		} catch (InterruptedException e) {
+			interrupt(e);
+		} finally {
+			semaphore.release();
+			images.remove(imageFullName);
+		}
+	}
+
+	private Future<?> submitPull(String imageFullName, String registry) {
+		return pulls.computeIfAbsent(imageFullName, image -> pullExecutor.submit(() -> {
+			pull(image, registry);
+			return null;
+		}));
+	}
+
+	private void awaitPull(String imageFullName, Future<?> pull) throws DeploymentException {
+		try {
+			pull.get();
+		} catch (InterruptedException e) {
+			interrupt(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DeploymentException)
+				throw (DeploymentException) e.getCause();
+			throw new DeploymentException("error while pulling image " + imageFullName, e.getCause());
+		}
+	}
+
+	/**
+	 * Start pulling concurrently the missing and latest images of the containers, the modules will wait for their
+	 * image when deployed.
+	 */
+	public void prePull(Collection<ContainerModule> containers) {
+		for (ContainerModule container : containers) {
+			String imageFullName = container.getImageFullName();
+			if (pulls.containsKey(imageFullName))
+				continue;
+
+			try {
+				if (!"latest".equals(container.getImageTag()) && getImage(imageFullName) != null)
+					continue;
+			} catch (DeploymentException e) {
+				// will be reported when the module is deployed
+				continue;
+			}
+
+			log.debug("pre-pulling image {}", imageFullName);
+			submitPull(imageFullName, getRegistry(container));
+		}
+	}
+
 	private boolean containerImageChanged(ContainerModule container) throws DeploymentException {
 		String imageFullName = container.getImageFullName();
+		boolean latest = "latest".equals(container.getImageTag());
 
-		boolean needPull = false;
-		if ("latest".equals(container.getImageTag())) {
-			log.info("{} image tag is latest, pulling...", imageFullName);
-			needPull = true;
-		} else {
-			try {
-				client.inspectImage(imageFullName);
+		Future<?> pull = pulls.get(imageFullName);
+		if (pull == null) {
+			if (!latest && getImage(imageFullName) != null) {
 				log.debug("{} image found, no need for pulling", imageFullName);
 				return false;
-			} catch (ImageNotFoundException e) {
-				log.info("{} image is not present, pulling...", imageFullName);
-				needPull = true;
-			} catch (DockerException e) {
-				wrapDockerException("error while inspecting image " + imageFullName, e);
-			} catch (InterruptedException e) {
-				interrupt(e);
 			}
-		}
 
-		if (needPull) {
-			try {
-				client.pull(imageFullName);
-			} catch (DockerException e) {
-				wrapDockerException("error while pulling image " + imageFullName, e);
-			} catch (InterruptedException e) {
-				interrupt(e);
-			}
+			if (latest)
+				log.info("{} image tag is latest, pulling...", imageFullName);
+			else
+				log.info("{} image is not present, pulling...", imageFullName);
+			pull = submitPull(imageFullName, getRegistry(container));
 		}
 
-		if ("latest".equals(container.getImageTag())) {
-			try {
-				ContainerInfo containerInfo = client.inspectContainer(container.getName());
-				ImageInfo imageInfo = client.inspectImage(imageFullName);
+		awaitPull(imageFullName, pull);
 
-				if (containerInfo.image().equals(imageInfo.id())) {
-					log.debug("{} container image did not change", container.getName());
-					return false;
-				}
-			} catch (ContainerNotFoundException e) {
-				// ignore
-			} catch (DockerException e) {
-				wrapDockerException("error while checking pulled image " + imageFullName, e);
-			} catch (InterruptedException e) {
-				interrupt(e);
+		if (latest) {
+			ContainerInfo containerInfo = getContainer(container.getName());
+			ImageInfo imageInfo = getImage(imageFullName);
+
+			if (containerInfo != null && imageInfo != null && containerInfo.image().equals(imageInfo.id())) {
+				log.debug("{} container image did not change", container.getName());
+				return false;
 			}
 		}
 
 		return true;
 	}
 
+	/**
+	 * @return the id of the local image or null if the image is not present
+	 */
+	public String getImageId(String imageFullName) throws DeploymentException {
+		ImageInfo info = getImage(imageFullName);
+		return info == null ? null : info.id();
+	}
+
 	public void discardContainer(ContainerModule container) throws DeploymentException {
+		// nothing to discard if the container does not exist
+		if (snapshotLoaded && !containers.containsKey(container.getName()))
+			return;
+
 		try {
 			client.stopContainer(container.getName(), STOP_TIMEOUT_SECONDS);
 		} catch (ContainerNotFoundException e) {
@@ -289,6 +621,26 @@ public class DockerLocalClient {
 		} catch (InterruptedException e) {
 			interrupt(e);
 		}
+
+		containers.remove(container.getName());
+	}
+
+	/*
+	 * Kill and remove a container in one call, for the bootstrap containers: nothing runs in them once the steps have
+	 * been executed, there is no point in waiting for a regular stop.
+	 */
+	void forceRemoveContainer(ContainerModule container) throws DeploymentException {
+		try {
+			client.removeContainer(container.getName(), RemoveContainerParam.forceKill());
+		} catch (ContainerNotFoundException e) {
+			// ignore
+		} catch (DockerException e) {
+			wrapDockerException("error while removing container " + container.getName(), e);
+		} catch (InterruptedException e) {
+			interrupt(e);
+		}
+
+		containers.remove(container.getName());
 	}
 
 	public boolean startContainer(boolean changed, ContainerModule container) throws DeploymentException {
@@ -308,39 +660,109 @@ public class DockerLocalClient {
 		return true;
 	}
 
-	public void startEphemeralContainer(ContainerModule container, String user, String... command)
-			throws DeploymentException {
+	/**
+	 * Start the bootstrap container of a module, it must be closed once the bootstrap steps have been executed.
+	 */
+	public BootstrapRunner startBootstrap(ContainerModule container) throws DeploymentException {
 		// always check for image
 		containerImageChanged(container);
 
-		String name = container.getName() + "-" + RandomStringUtils.random(10, true, true);
+		// remove the leftovers of previous runs that did not complete
+		String prefix = container.getName() + BOOTSTRAP_SUFFIX;
+		loadSnapshot();
+		for (String name : new ArrayList<>(containers.keySet()))
+			if (name.startsWith(prefix))
+				forceRemoveContainer(new ContainerModule(name, container));
 
-		if (StringUtils.isNotBlank(user) && !user.equalsIgnoreCase("root"))
-			command = new String[] { "su", "-s", "/bin/sh", "-c", String.join(" ", command), user };
-
-		ContainerModule temporaryContainer = new ContainerModule(name, container);
+		ContainerModule bootstrapContainer = new ContainerModule(prefix + RandomStringUtils.random(10, true, true),
+				container);
+		try {
+			startOrRestartContainer(bootstrapContainer, true, BOOTSTRAP_COMMAND);
+			awaitBootstrapCommand(bootstrapContainer);
+		} catch (DeploymentException e) {
+			forceRemoveContainer(bootstrapContainer);
+			throw e;
+		}
+		return new BootstrapRunner(this, bootstrapContainer);
+	}
 
-		log.debug("executing command {}", String.join(" ", command));
-		startOrRestartContainer(temporaryContainer, true, command);
+	/*
+	 * The image entrypoint cleans /run and /tmp and writes /etc/environment before it executes the command, the
+	 * bootstrap steps must not run until it is done.
+	 */
+	private void awaitBootstrapCommand(ContainerModule container) throws DeploymentException {
+		String name = container.getName();
+		String command = String.join(" ", BOOTSTRAP_COMMAND);
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(READY_TIMEOUT_SECONDS);
 
 		try {
-			ContainerExit code = client.waitContainer(name);
-			if (code.statusCode() == 0)
-				return;
-			throw new DeploymentException("ephemeral container " + name + " execution returned " + code
-					+ " for command " + String.join(" ", command));
+			while (true) {
+				TopResults top = client.topContainer(name);
+				int index = top.titles().indexOf("CMD");
+				if (index < 0)
+					index = top.titles().indexOf("COMMAND");
+				if (index >= 0 && top.processes() != null)
+					for (List<String> process : top.processes())
+						if (process.get(index).startsWith(command))
+							return;
+
+				checkAlive(container);
+				if (System.currentTimeMillis() > deadline)
+					throw new DeploymentException(String.format("container %s entrypoint not completed after %ds",
+							name, READY_TIMEOUT_SECONDS));
+				Thread.sleep(BOOTSTRAP_POLL_MS);
+			}
 		} catch (DockerException e) {
-			wrapDockerException("error while waiting for container " + name, e);
+			wrapDockerException("error while listing processes of container " + name, e);
 		} catch (InterruptedException e) {
 			interrupt(e);
 		}
-
-		discardContainer(temporaryContainer);
 	}
 
-	private void startOrRestartContainer(ContainerModule container, boolean ephemeral, String... command)
-			throws DeploymentException {
+	void exec(String name, String user, String... command) throws DeploymentException {
+		String script = String.join(" ", command);
+		log.debug("executing command {} in container {}", script, name);
+
+		try {
+			ExecCreation creation = client.execCreate(name, new String[] { "/bin/sh", "-c", script },
+					ExecCreateParam.attachStdout(), ExecCreateParam.attachStderr(),
+					ExecCreateParam.user(StringUtils.defaultIfBlank(user, "root")));
+
+			// log the output line by line while the command runs
+			try (LogStream stream = client.execStart(creation.id())) {
+				ByteArrayOutputStream line = new ByteArrayOutputStream();
+				while (stream.hasNext()) {
+					ByteBuffer content = stream.next().content();
+					while (content.hasRemaining()) {
+						byte b = content.get();
+						if (b != '\n') {
+							line.write(b);
+							continue;
+						}
+						log.info("[{}] {}", name, new String(line.toByteArray(), StandardCharsets.UTF_8));
+						line.reset();
+					}
+				}
+				if (line.size() > 0)
+					log.info("[{}] {}", name, new String(line.toByteArray(), StandardCharsets.UTF_8));
+			}
 
+			Integer exitCode = client.execInspect(creation.id()).exitCode();
+			if (exitCode == null || exitCode != 0)
+				throw new DeploymentException(
+						String.format("command %s returned %s in container %s", script, exitCode, name));
+		} catch (DockerException e) {
+			wrapDockerException("error while executing command in container " + name, e);
+		} catch (InterruptedException e) {
+			interrupt(e);
+		}
+	}
+
+	/*
+	 * Desired configuration of a container, without the fingerprint label.
+	 */
+	private ContainerConfig.Builder buildContainerConfig(ContainerModule container, boolean ephemeral,
+			String... command) throws DeploymentException {
 		com.spotify.docker.client.messages.HostConfig.Builder hostConfigBuilder = HostConfig.builder();
 		com.spotify.docker.client.messages.ContainerConfig.Builder containerConfigBuilder = ContainerConfig.builder();
 
@@ -380,13 +802,39 @@ public class DockerLocalClient {
 		// prepare environment
 		containerConfigBuilder.env(environmentAsList(container));
 
+		containerConfigBuilder.hostConfig(hostConfigBuilder.build());
+		return containerConfigBuilder;
+	}
+
+	/*
+	 * Canonical hash of the desired configuration (including the environment files content) and of the image.
+	 */
+	private String getConfigFingerprint(ContainerConfig config) throws DeploymentException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(FINGERPRINT_MAPPER.writeValueAsBytes(config));
+			digest.update((byte) 0);
+			String imageId = getImageId(config.image());
+			if (imageId != null)
+				digest.update(imageId.getBytes(StandardCharsets.UTF_8));
+			return Hex.encodeHexString(digest.digest());
+		} catch (NoSuchAlgorithmException | JsonProcessingException e) {
+			throw new DeploymentException("could not compute container configuration fingerprint", e);
+		}
+	}
+
+	private void startOrRestartContainer(ContainerModule container, boolean ephemeral, String... command)
+			throws DeploymentException {
+		ContainerConfig.Builder containerConfigBuilder = buildContainerConfig(container, ephemeral, command);
+		String fingerprint = getConfigFingerprint(containerConfigBuilder.build());
+		containerConfigBuilder.labels(Collections.singletonMap(FINGERPRINT_LABEL, fingerprint));
+
 		// We are finally done with the configuration, we can now start the container
 
 		discardContainer(container);
 
 		String containerId = null;
 		try {
-			containerConfigBuilder.hostConfig(hostConfigBuilder.build());
 			ContainerCreation creation = client.createContainer(containerConfigBuilder.build(), container.getName());
 			containerId = creation.id();
 		} catch (DockerException e) {
@@ -395,6 +843,18 @@ public class DockerLocalClient {
 			interrupt(e);
 		}
 
+		// registered before the start so we cannot miss the events
+		if (!ephemeral) {
+			ImageInfo imageInfo = getImage(container.getImageFullName());
+			if (imageInfo != null && imageInfo.config() != null && imageInfo.config().healthcheck() != null)
+				healthchecked.add(container.getName());
+			else
+				healthchecked.remove(container.getName());
+			failures.remove(container.getName());
+			containerIds.put(container.getName(), containerId);
+			readiness.put(container.getName(), new CompletableFuture<>());
+		}
+
 		try {
 			client.startContainer(containerId);
 		} catch (DockerException e) {
@@ -403,29 +863,21 @@ public class DockerLocalClient {
 			interrupt(e);
 		}
 
+		refreshContainer(container.getName());
+
 		log.debug("started container " + container.getName());
 	}
 
 	public String getContainerInfo(ContainerModule container) throws DeploymentException {
-		ContainerInfo containerInfo = null;
-		ImageInfo imageInfo = null;
-
-		try {
-			containerInfo = client.inspectContainer(container.getName());
-		} catch (ContainerNotFoundException e) {
+		ContainerInfo containerInfo = getContainer(container.getName());
+		if (containerInfo == null)
 			return "container " + container.getName() + " not found\n";
-		} catch (DockerException e) {
-			wrapDockerException("error while inspecting container " + container.getName(), e);
-		} catch (InterruptedException e) {
-			interrupt(e);
-		}
 
+		ImageInfo imageInfo = null;
 		try {
-			imageInfo = client.inspectImage(container.getImageFullName());
-		} catch (DockerException e) {
+			imageInfo = getImage(container.getImageFullName());
+		} catch (DeploymentException e) {
 			// ignore
-		} catch (InterruptedException e) {
-			interrupt(e);
 		}
 
 		StringBuffer sb = new StringBuffer();
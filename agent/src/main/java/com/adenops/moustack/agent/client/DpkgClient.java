@@ -19,18 +19,17 @@
 
 package com.adenops.moustack.agent.client;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -43,7 +42,6 @@ import com.adenops.moustack.agent.util.ProcessUtil;
 
 public class DpkgClient extends AbstractPackagingClient {
 	private static final Logger log = LoggerFactory.getLogger(DpkgClient.class);
-	private static final Pattern STATUS_KEY_PATTERN = Pattern.compile("^([^:]+): (.*)$");
 
 	private static final Map<String, String> APT_ENV = new HashMap<String, String>() {
 		private static final long serialVersionUID = 1L;
@@ -66,7 +64,7 @@ public class DpkgClient extends AbstractPackagingClient {
 			return Collections.emptyList();
 
 		List<DebPackageInfo> result = new ArrayList<>();
-		Map<String, String> packages = new HashMap<>();
+		Map<String, String> packages = new LinkedHashMap<>();
 
 		for (String pkg : pkgs) {
 			String[] parts = pkg.split("=", 2);
@@ -75,85 +73,39 @@ public class DpkgClient extends AbstractPackagingClient {
 			packages.put(name, version);
 		}
 
-		try (BufferedReader br = new BufferedReader(new FileReader("/var/lib/dpkg/status"))) {
-			String line = null;
-			boolean skip = false;
-
-			DebPackageInfo currentPkg = null;
-
-			while ((line = br.readLine()) != null && !packages.isEmpty()) {
-				// if line is empty, this is the section separator
-				if (line.isEmpty()) {
-					skip = false;
-					continue;
-				}
-				// when skip is enabled, don't need to go further
-				if (skip)
-					continue;
-
-				Matcher matcher = STATUS_KEY_PATTERN.matcher(line);
-
-				// if not matching or invalid, we can skip
-				if (!matcher.matches() || StringUtils.isBlank(matcher.group(1))
-						|| StringUtils.isBlank(matcher.group(2)))
-					continue;
-
-				switch (matcher.group(1)) {
-				case "Package":
-					String name = matcher.group(2);
-
-					if (!packages.containsKey(name)) {
-						skip = true;
-						continue;
-					}
-
-					currentPkg = new DebPackageInfo(name, packages.get(name));
-					break;
-
-				case "Status":
-					currentPkg.setInstalled(matcher.group(2).endsWith(" ok installed"));
-					currentPkg.setLocked(matcher.group(2).startsWith("hold "));
-					break;
-
-				case "Version":
-					currentPkg.setInstalledVersion(matcher.group(2));
-					result.add(currentPkg);
-
-					// skip to next package
-					packages.remove(currentPkg.getName());
-					skip = true;
-					break;
-				}
+		DpkgStatusIndex index = DpkgStatusIndex.get();
+		for (Entry<String, String> entry : packages.entrySet()) {
+			DebPackageInfo packageInfo = new DebPackageInfo(entry.getKey(), entry.getValue());
+			DpkgStatusIndex.Entry status = index.get(entry.getKey());
+			if (status != null) {
+				packageInfo.setInstalled(status.isInstalled());
+				packageInfo.setLocked(status.isHold());
+				packageInfo.setInstalledVersion(status.getVersion());
 			}
-		} catch (FileNotFoundException e) {
-			throw new DeploymentException("could not open file /var/lib/dpkg/status");
-		} catch (IOException e) {
-			throw new DeploymentException("error while reading file /var/lib/dpkg/status", e);
+			result.add(packageInfo);
 		}
 
-		// finally we add the packages we didn't find in the status
-		for (Entry<String, String> entry : packages.entrySet())
-			result.add(new DebPackageInfo(entry.getKey(), entry.getValue()));
-
 		return result;
 	}
 
 	@Override
-	public boolean install(String... packages) throws DeploymentException {
+	protected Set<String> installPackages(String... packages) throws DeploymentException {
+		Set<String> changed = new HashSet<>();
 		if (packages.length == 0)
-			return false;
-
-		boolean changed = false;
+			return changed;
 
 		List<DebPackageInfo> packagesInfo = toPackageInfo(packages);
 
-		String[] packagesToInstall = packagesInfo.stream()
+		List<DebPackageInfo> packagesOutdated = packagesInfo.stream()
 				.filter(p -> !p.isInstalled() || (!StringUtils.isBlank(p.getRequiredVersion()) && p.isInstalled()
 						&& !StringUtils.equals(p.getRequiredVersion(), p.getInstalledVersion())))
-				.map(p -> p.getFullName()).toArray(size -> new String[size]);
+				.collect(Collectors.toList());
+
+		String[] packagesToInstall = packagesOutdated.stream().map(p -> p.getFullName())
+				.toArray(size -> new String[size]);
 
 		if (packagesToInstall.length > 0) {
-			changed = true;
+			packagesOutdated.forEach(p -> changed.add(p.getName()));
 			log.info("installing " + String.join(" ", packagesToInstall));
 			apt("install", packagesToInstall);
 		}
@@ -163,7 +115,7 @@ public class DpkgClient extends AbstractPackagingClient {
 				.toArray(size -> new String[size]);
 
 		if (packagesToLock.length > 0) {
-			changed = true;
+			changed.addAll(Arrays.asList(packagesToLock));
 			log.info("locking " + String.join(" ", packagesToLock));
 			String[] command = ArrayUtils.addAll(new String[] { "apt-mark", "hold" }, packagesToLock);
 			ProcessUtil.execute(null, null, APT_ENV, false, command);
@@ -173,9 +125,25 @@ public class DpkgClient extends AbstractPackagingClient {
 	}
 
 	@Override
-	public boolean remove(String... packages) throws DeploymentException {
+	protected void prefetchPackages(String... packages) throws DeploymentException {
+		String[] packagesToDownload = toPackageInfo(packages).stream()
+				.filter(p -> !p.isInstalled() || (!StringUtils.isBlank(p.getRequiredVersion())
+						&& !StringUtils.equals(p.getRequiredVersion(), p.getInstalledVersion())))
+				.map(p -> p.getFullName()).toArray(size -> new String[size]);
+
+		if (packagesToDownload.length == 0)
+			return;
+
+		log.debug("downloading " + String.join(" ", packagesToDownload));
+		String[] command = ArrayUtils.addAll(new String[] { "apt-get", "install", "--download-only", "--assume-yes",
+				"--quiet", "--allow-downgrades" }, packagesToDownload);
+		ProcessUtil.execute(null, null, APT_ENV, true, command);
+	}
+
+	@Override
+	protected Set<String> removePackages(String... packages) throws DeploymentException {
 		if (packages.length == 0)
-			return false;
+			return Collections.emptySet();
 
 		List<DebPackageInfo> packagesInfo = toPackageInfo(packages);
 
@@ -183,15 +151,25 @@ public class DpkgClient extends AbstractPackagingClient {
 				.toArray(size -> new String[size]);
 
 		if (packagesToRemove.length == 0)
-			return false;
+			return Collections.emptySet();
 
-		log.info("removing " + String.join(" ", packages));
+		log.info("removing " + String.join(" ", packagesToRemove));
 		apt("purge", packagesToRemove);
 
-		return true;
+		return new HashSet<>(Arrays.asList(packagesToRemove));
 	}
 
 	@Override
 	public void init() throws DeploymentException {
 	}
+
+	@Override
+	public String getInstalledPackages() throws DeploymentException {
+		StringBuilder sb = new StringBuilder();
+		for (DpkgStatusIndex.Entry entry : DpkgStatusIndex.get().getEntries()) {
+			if (entry.isInstalled())
+				sb.append(entry.getBinaryName()).append('-').append(entry.getVersion()).append('\n');
+		}
+		return sb.toString();
+	}
 }
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.DeploymentException;
+
+/**
+ * In-memory index of the dpkg status database.
+ *
+ * The status file is memory-mapped and parsed once, only the fields we need are decoded. The index is reloaded when
+ * the file is replaced or modified (dpkg rewrites it after each operation).
+ */
+public class DpkgStatusIndex {
+	private static final Logger log = LoggerFactory.getLogger(DpkgStatusIndex.class);
+	private static final Path STATUS_FILE = Paths.get("/var/lib/dpkg/status");
+
+	private static final byte[] PACKAGE_FIELD = "Package:".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] STATUS_FIELD = "Status:".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] VERSION_FIELD = "Version:".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ARCHITECTURE_FIELD = "Architecture:".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MULTIARCH_FIELD = "Multi-Arch:".getBytes(StandardCharsets.US_ASCII);
+
+	private static DpkgStatusIndex current;
+
+	public static class Entry {
+		private final String name;
+		private final String version;
+		private final String architecture;
+		private final boolean installed;
+		private final boolean hold;
+		private final boolean multiArchSame;
+
+		private Entry(String name, String version, String architecture, String status, boolean multiArchSame) {
+			this.name = name;
+			this.version = version;
+			this.architecture = architecture;
+			this.installed = status != null && status.endsWith(" ok installed");
+			this.hold = status != null && status.startsWith("hold ");
+			this.multiArchSame = multiArchSame;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		public boolean isInstalled() {
+			return installed;
+		}
+
+		public boolean isHold() {
+			return hold;
+		}
+
+		/*
+		 * Same as dpkg-query ${binary:Package}, the architecture is only part of the name for Multi-Arch: same
+		 * packages.
+		 */
+		public String getBinaryName() {
+			return multiArchSame && architecture != null ? name + ":" + architecture : name;
+		}
+	}
+
+	private final Object fileKey;
+	private final long lastModified;
+	private final long size;
+
+	// name -> status, an installed stanza is preferred over other ones (i.e. other architectures removed)
+	private final Map<String, Entry> packages;
+	// all stanzas in file order
+	private final List<Entry> entries;
+
+	private DpkgStatusIndex(BasicFileAttributes attributes, List<Entry> entries) {
+		this.fileKey = attributes.fileKey();
+		this.lastModified = attributes.lastModifiedTime().toMillis();
+		this.size = attributes.size();
+		this.entries = Collections.unmodifiableList(entries);
+		this.packages = new HashMap<>(entries.size() * 4 / 3 + 1);
+		for (Entry entry : entries) {
+			Entry previous = packages.get(entry.getName());
+			if (previous == null || (!previous.isInstalled() && entry.isInstalled()))
+				packages.put(entry.getName(), entry);
+		}
+	}
+
+	/**
+	 * Returns the index of the system status database, reloading it if it changed since the last call.
+	 */
+	public static synchronized DpkgStatusIndex get() throws DeploymentException {
+		BasicFileAttributes attributes = readAttributes(STATUS_FILE);
+		if (current != null && current.isCurrent(attributes))
+			return current;
+
+		current = load(STATUS_FILE, attributes);
+		return current;
+	}
+
+	/**
+	 * Returns the index of the given status file, it is not cached.
+	 */
+	static DpkgStatusIndex load(Path file) throws DeploymentException {
+		return load(file, readAttributes(file));
+	}
+
+	private static DpkgStatusIndex load(Path file, BasicFileAttributes attributes) throws DeploymentException {
+		log.debug("loading dpkg status database {}", file);
+		DpkgStatusIndex index = new DpkgStatusIndex(attributes, parse(file, attributes.size()));
+		log.debug("{} packages in dpkg status database", index.packages.size());
+		return index;
+	}
+
+	private static BasicFileAttributes readAttributes(Path file) throws DeploymentException {
+		try {
+			return Files.readAttributes(file, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			throw new DeploymentException("could not open file " + file);
+		} catch (IOException e) {
+			throw new DeploymentException("error while reading file " + file, e);
+		}
+	}
+
+	private boolean isCurrent(BasicFileAttributes attributes) {
+		return Objects.equals(fileKey, attributes.fileKey())
+				&& lastModified == attributes.lastModifiedTime().toMillis() && size == attributes.size();
+	}
+
+	public Entry get(String name) {
+		return packages.get(name);
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	private static List<Entry> parse(Path file, long size) throws DeploymentException {
+		if (size > Integer.MAX_VALUE)
+			throw new DeploymentException("file " + file + " is too large");
+
+		List<Entry> entries = new ArrayList<>(4096);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int limit = buffer.limit();
+
+			String name = null, status = null, version = null, architecture = null;
+			boolean multiArchSame = false;
+
+			int position = 0;
+			while (position <= limit) {
+				int end = position;
+				while (end < limit && buffer.get(end) != '\n')
+					end++;
+
+				if (end == position) {
+					// empty line (or end of file), this is the stanza separator
+					if (name != null)
+						entries.add(new Entry(name, version, architecture, status, multiArchSame));
+					name = status = version = architecture = null;
+					multiArchSame = false;
+				} else if (buffer.get(position) != ' ' && buffer.get(position) != '\t') {
+					// continuation lines (starting with a space) are never relevant
+					if (startsWith(buffer, position, end, PACKAGE_FIELD))
+						name = value(buffer, position + PACKAGE_FIELD.length, end);
+					else if (startsWith(buffer, position, end, STATUS_FIELD))
+						status = value(buffer, position + STATUS_FIELD.length, end);
+					else if (startsWith(buffer, position, end, VERSION_FIELD))
+						version = value(buffer, position + VERSION_FIELD.length, end);
+					else if (startsWith(buffer, position, end, ARCHITECTURE_FIELD))
+						architecture = value(buffer, position + ARCHITECTURE_FIELD.length, end);
+					else if (startsWith(buffer, position, end, MULTIARCH_FIELD))
+						multiArchSame = "same".equals(value(buffer, position + MULTIARCH_FIELD.length, end));
+				}
+
+				position = end + 1;
+			}
+
+			// last stanza if the file does not end with a newline
+			if (name != null)
+				entries.add(new Entry(name, version, architecture, status, multiArchSame));
+		} catch (IOException e) {
+			throw new DeploymentException("error while reading file " + file, e);
+		}
+		return entries;
+	}
+
+	private static boolean startsWith(MappedByteBuffer buffer, int start, int end, byte[] prefix) {
+		if (end - start < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++)
+			if (buffer.get(start + i) != prefix[i])
+				return false;
+		return true;
+	}
+
+	private static String value(MappedByteBuffer buffer, int start, int end) {
+		while (start < end && (buffer.get(start) == ' ' || buffer.get(start) == '\t'))
+			start++;
+		while (end > start
+				&& (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\t' || buffer.get(end - 1) == '\r'))
+			end--;
+		if (start == end)
+			return null;
+
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(start + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
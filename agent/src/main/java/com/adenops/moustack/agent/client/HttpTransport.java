@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.config.AgentConfig;
+import com.adenops.moustack.agent.util.HttpUtil;
+import com.adenops.moustack.agent.util.HttpUtil.TrustAllHostNameVerifier;
+
+/**
+ * HTTP transport shared by all the agent REST clients: a single pool of keep-alive connections (limited per host) so
+ * successive API calls reuse the same TCP connections.
+ */
+public class HttpTransport {
+	private static final Logger log = LoggerFactory.getLogger(HttpTransport.class);
+
+	// connections idle for longer are checked before being reused, services are often restarted during a deployment
+	private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+	private static HttpTransport instance;
+
+	private final MeteredConnectionManager connectionManager;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final boolean gzip;
+
+	/**
+	 * Connection manager keeping track of the time spent waiting for a connection from the pool.
+	 */
+	private static class MeteredConnectionManager extends PoolingHttpClientConnectionManager {
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder waitTime = new LongAdder();
+
+		private MeteredConnectionManager(Registry<ConnectionSocketFactory> registry) {
+			super(registry);
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+			ConnectionRequest request = super.requestConnection(route, state);
+			return new ConnectionRequest() {
+				@Override
+				public HttpClientConnection get(long timeout, TimeUnit tunit)
+						throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+					long start = System.nanoTime();
+					try {
+						return request.get(timeout, tunit);
+					} finally {
+						requests.increment();
+						waitTime.add(System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public boolean cancel() {
+					return request.cancel();
+				}
+			};
+		}
+	}
+
+	public static class IdentityEncodingFilter implements ClientRequestFilter {
+		@Override
+		public void filter(ClientRequestContext requestContext) {
+			requestContext.getHeaders().putSingle(HttpHeaders.ACCEPT_ENCODING, "identity");
+		}
+	}
+
+	public static synchronized HttpTransport getInstance() {
+		if (instance == null)
+			instance = new HttpTransport(AgentConfig.getInstance());
+		return instance;
+	}
+
+	private HttpTransport(AgentConfig config) {
+		RegistryBuilder<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory());
+
+		// disable SSL verification if requested
+		if (config.isSslVerify()) {
+			registry.register("https", SSLConnectionSocketFactory.getSocketFactory());
+		} else {
+			try {
+				SSLContext ctx = SSLContext.getInstance("SSL");
+				ctx.init(null, HttpUtil.certs, new SecureRandom());
+				registry.register("https", new SSLConnectionSocketFactory(ctx, new TrustAllHostNameVerifier()));
+			} catch (KeyManagementException | NoSuchAlgorithmException e) {
+				// not clean, but easier to throw a runtime exception here
+				throw new RuntimeException("cannot initialize SSl context", e);
+			}
+		}
+
+		connectionManager = new MeteredConnectionManager(registry.build());
+		connectionManager.setDefaultMaxPerRoute(config.getHttpConnections());
+		connectionManager.setMaxTotal(config.getHttpConnections() * 4);
+		connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+		connectTimeout = config.getHttpConnectTimeout() * 1000;
+		readTimeout = config.getHttpReadTimeout() * 1000;
+		gzip = config.isHttpGzip();
+
+		log.debug("initialized HTTP connection pool ({} connections per host)", config.getHttpConnections());
+	}
+
+	/**
+	 * Build a JAX-RS client on top of the shared connection pool.
+	 */
+	public Client newClient() {
+		ClientConfig clientConfig = new ClientConfig();
+		clientConfig.connectorProvider(new ApacheConnectorProvider());
+		clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+		clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER_SHARED, true);
+		clientConfig.property(ApacheClientProperties.DISABLE_COOKIES, true);
+
+		// do not wait forever for a connection if the pool is exhausted
+		clientConfig.property(ApacheClientProperties.REQUEST_CONFIG,
+				RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).build());
+		clientConfig.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout);
+		clientConfig.property(ClientProperties.READ_TIMEOUT, readTimeout);
+
+		// send a Content-Length like the default connector did, some WSGI servers reject chunked requests
+		clientConfig.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.BUFFERED);
+
+		// HttpClient asks for compressed responses and decodes them transparently, unless an encoding is set
+		if (!gzip)
+			clientConfig.register(IdentityEncodingFilter.class);
+
+		return ClientBuilder.newClient(clientConfig);
+	}
+
+	public String getStatistics() {
+		PoolStats stats = connectionManager.getTotalStats();
+		long requests = connectionManager.requests.sum();
+		long waitTime = TimeUnit.NANOSECONDS.toMillis(connectionManager.waitTime.sum());
+		return String.format("%d leased, %d idle, %d pending, %d max, %d leases (%dms waiting)", stats.getLeased(),
+				stats.getAvailable(), stats.getPending(), stats.getMax(), requests, waitTime);
+	}
+}
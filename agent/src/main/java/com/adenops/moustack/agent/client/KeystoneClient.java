@@ -19,64 +19,245 @@
 
 package com.adenops.moustack.agent.client;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentException;
 import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
-import com.adenops.moustack.agent.model.openstack.BaseResponse;
+import com.adenops.moustack.agent.model.openstack.OSEntity;
 import com.adenops.moustack.agent.model.openstack.keystone.Domain;
+import com.adenops.moustack.agent.model.openstack.keystone.DomainResponse;
 import com.adenops.moustack.agent.model.openstack.keystone.Endpoint;
-import com.adenops.moustack.agent.model.openstack.keystone.OSAuth;
+import com.adenops.moustack.agent.model.openstack.keystone.EndpointResponse;
 import com.adenops.moustack.agent.model.openstack.keystone.Project;
+import com.adenops.moustack.agent.model.openstack.keystone.ProjectResponse;
 import com.adenops.moustack.agent.model.openstack.keystone.Role;
+import com.adenops.moustack.agent.model.openstack.keystone.RoleResponse;
 import com.adenops.moustack.agent.model.openstack.keystone.Service;
 import com.adenops.moustack.agent.model.openstack.keystone.ServiceResponse;
-import com.adenops.moustack.agent.model.openstack.keystone.TokenResponse;
 import com.adenops.moustack.agent.model.openstack.keystone.User;
 import com.adenops.moustack.agent.model.openstack.keystone.UserResponse;
 
-/*
- *  TODO: use a proxy or something to avoid duplication of the retry logic
- */
 public class KeystoneClient extends AbstractOpenStackClient {
 	private static final Logger log = LoggerFactory.getLogger(KeystoneClient.class);
 
+	// identity cache: each collection is listed once on first use, then kept up to date by our own
+	// create/update/delete calls. The client is instantiated for every run, so there is no expiration.
+	private final Index<User> users = new Index<>("users", User.class, User::getName);
+	private final Index<Role> roles = new Index<>("roles", Role.class, Role::getName);
+	private final Index<Project> projects = new Index<>("projects", Project.class, Project::getName);
+	private final Index<Domain> domains = new Index<>("domains", Domain.class, Domain::getName);
+	private final Index<Service> services = new Index<>("services", Service.class, Service::getName);
+	private final Index<Endpoint> endpoints = new Index<>("endpoints", Endpoint.class,
+			endpoint -> getEndpointKey(endpoint.getService_id(), endpoint.get_interface()));
+
+	// result of the authentication checks, per user and password hash
+	private final Map<String, Boolean> passwordChecks = new ConcurrentHashMap<>();
+
+	// direct user role assignments, stored as their API path (projects/{id}/users/{id}/roles/{id})
+	private Set<String> roleAssignments;
+	private boolean roleAssignmentsComplete;
+
 	public KeystoneClient(StackConfig stack) throws DeploymentException {
 		super("keystone", String.format("http://%s:35357/v3", stack.get(StackProperty.CONTROLLER_MANAGEMENT_IP)));
 		token = stack.get(StackProperty.KEYSTONE_ADMIN_TOKEN);
 	}
 
+	/**
+	 * Entities of a collection indexed by a key (the name for most of them). The whole collection is retrieved with
+	 * the first lookup, if the server truncated the listing we fallback to a filtered query for missing entries.
+	 */
+	private class Index<E extends OSEntity> {
+		private final String collection;
+		private final Class<E> clazz;
+		private final Function<E, String> keyFunction;
+		private Map<String, E> entries;
+		private final Set<String> duplicates = new HashSet<>();
+		private boolean complete;
+
+		private Index(String collection, Class<E> clazz, Function<E, String> keyFunction) {
+			this.collection = collection;
+			this.clazz = clazz;
+			this.keyFunction = keyFunction;
+		}
+
+		private void load() throws DeploymentException {
+			List<E> results = new ArrayList<>();
+			complete = getAll(collection, clazz, collection, null, results);
+			entries = new HashMap<>();
+			for (E entry : results) {
+				String key = keyFunction.apply(entry);
+				if (entries.put(key, entry) != null)
+					duplicates.add(key);
+			}
+			log.debug("loaded {} {}", results.size(), collection);
+		}
+
+		private synchronized E get(String key, Map<String, String> parameters) throws DeploymentException {
+			if (entries == null)
+				load();
+
+			// keep the behavior of the filtered query
+			if (duplicates.contains(key))
+				throw new DeploymentException(collection + ": received more than one result");
+
+			E entry = entries.get(key);
+			if (entry != null || complete)
+				return entry;
+
+			entry = getSingle(null, collection, clazz, collection, parameters);
+			if (entry != null)
+				entries.put(key, entry);
+			return entry;
+		}
+
+		private synchronized void put(E entry) {
+			// if not loaded yet, the entry will be part of the listing
+			if (entries != null)
+				entries.put(keyFunction.apply(entry), entry);
+		}
+
+		private synchronized void remove(E entry) {
+			if (entries != null)
+				entries.remove(keyFunction.apply(entry));
+		}
+	}
+
+	private static String getEndpointKey(String serviceId, String _interface) {
+		return serviceId + "/" + _interface;
+	}
+
+	/**
+	 * Set the id on an entity we just sent to the API so it can be stored in the cache
+	 */
+	private static <E extends OSEntity> E withId(E entity, String id) {
+		entity.setId(id);
+		return entity;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static String getId(Map map, String... keys) {
+		Object value = map;
+		for (String key : keys) {
+			if (!(value instanceof Map))
+				return null;
+			value = ((Map) value).get(key);
+		}
+		return value != null ? value.toString() : null;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private synchronized boolean hasRoleAssignment(String path) throws DeploymentException {
+		if (roleAssignments == null) {
+			List<Map> results = new ArrayList<>();
+			roleAssignmentsComplete = getAll("role_assignments", Map.class, "role_assignments", null, results);
+			roleAssignments = new HashSet<>();
+			for (Map assignment : results) {
+				String userId = getId(assignment, "user", "id");
+				String roleId = getId(assignment, "role", "id");
+				// skip group and inherited assignments, they are not what we grant
+				if (userId == null || roleId == null || getId(assignment, "scope", "OS-INHERIT:inherited_to") != null)
+					continue;
+
+				String projectId = getId(assignment, "scope", "project", "id");
+				String domainId = getId(assignment, "scope", "domain", "id");
+				if (projectId != null)
+					roleAssignments.add(String.format("projects/%s/users/%s/roles/%s", projectId, userId, roleId));
+				else if (domainId != null)
+					roleAssignments.add(String.format("domains/%s/users/%s/roles/%s", domainId, userId, roleId));
+			}
+			log.debug("loaded {} role assignments", roleAssignments.size());
+		}
+
+		if (roleAssignments.contains(path))
+			return true;
+		if (roleAssignmentsComplete)
+			return false;
+
+		boolean hasRole = head(path, null);
+		if (hasRole)
+			roleAssignments.add(path);
+		return hasRole;
+	}
+
+	private synchronized void addRoleAssignment(String path) {
+		if (roleAssignments != null)
+			roleAssignments.add(path);
+	}
+
+	private synchronized void removeUserRoleAssignments(String userId) {
+		if (roleAssignments != null)
+			roleAssignments.removeIf(path -> path.contains("/users/" + userId + "/"));
+	}
+
+	private static String getPasswordKey(String name, String password, String domainId) {
+		return String.join("|", domainId, name, DigestUtils.sha256Hex(password));
+	}
+
+	/**
+	 * Check the password of a user, at most once per run. A token still cached for these credentials is validated
+	 * against keystone (it is revoked if the password changed), otherwise we authenticate with them and the issued
+	 * token is cached so clients using the same credentials do not need to authenticate again.
+	 */
+	private boolean checkPassword(String name, String password, String domainId) throws DeploymentException {
+		String key = getPasswordKey(name, password, domainId);
+		Boolean valid = passwordChecks.get(key);
+		if (valid != null)
+			return valid;
+
+		log.debug("checking authentication for user " + name);
+		String cached = getCachedToken(this, name, password, domainId);
+		if (cached != null && head("auth/tokens", null, Collections.singletonMap("X-Subject-Token", cached))) {
+			valid = true;
+		} else {
+			try {
+				issueToken(this, name, password, domainId);
+				valid = true;
+			} catch (UnauthorizedException e) {
+				valid = false;
+			}
+		}
+		passwordChecks.put(key, valid);
+		return valid;
+	}
+
 	public User getUser(StackConfig stack, String name) throws DeploymentException {
-		return getSingle(stack, "users", User.class, "users", Collections.singletonMap("name", name));
+		return users.get(name, Collections.singletonMap("name", name));
 	}
 
 	public Role getRole(StackConfig stack, String name) throws DeploymentException {
-		return getSingle(stack, "roles", Role.class, "roles", Collections.singletonMap("name", name));
+		return roles.get(name, Collections.singletonMap("name", name));
 	}
 
 	public Project getProject(StackConfig stack, String name) throws DeploymentException {
-		return getSingle(stack, "projects", Project.class, "projects", Collections.singletonMap("name", name));
+		return projects.get(name, Collections.singletonMap("name", name));
 	}
 
 	public Domain getDomain(StackConfig stack, String name) throws DeploymentException {
-		return getSingle(stack, "domains", Domain.class, "domains", Collections.singletonMap("name", name));
+		return domains.get(name, Collections.singletonMap("name", name));
 	}
 
 	public Service getService(StackConfig stack, String name) throws DeploymentException {
-		return getSingle(stack, "services", Service.class, "services", Collections.singletonMap("name", name));
+		return services.get(name, Collections.singletonMap("name", name));
 	}
 
 	public Endpoint getEndpoint(StackConfig stack, String serviceId, String _interface) throws DeploymentException {
 		Map<String, String> parameters = new HashMap<>();
 		parameters.put("service_id", serviceId);
 		parameters.put("interface", _interface);
-		return getSingle(stack, "endpoints", Endpoint.class, "endpoints", parameters);
+		return endpoints.get(getEndpointKey(serviceId, _interface), parameters);
 	}
 
 	public boolean createUser(StackConfig stack, String name, String description, String email, String password,
@@ -101,32 +282,33 @@ public class KeystoneClient extends AbstractOpenStackClient {
 			if (stringsEqual(user.getDescription(), description) && stringsEqual(user.getEmail(), email)
 					&& stringsEqual(user.getDefault_project_id(), project != null ? project.getId() : null)) {
 
-				try {
-					// checking authentication
-					log.debug("checking authentication for user " + name);
-					post(UserResponse.class, "auth/tokens", "auth", new OSAuth(name, password, domainId));
-
-					// no exception, authentication success
+				if (checkPassword(name, password, domainId))
 					return false;
-				} catch (Exception e) {
-					log.info("password  changed for user " + name);
-				}
+				log.info("password  changed for user " + name);
 			} else {
 				// if attributes changed but not password, we can just update
 				// them
 				log.info("updating user " + name);
 				patch(stack, String.format("users/%s", user.getId()), "user",
 						new User(name, description, email, password, projectId, domainId));
+				users.put(withId(new User(name, description, email, null, projectId, domainId), user.getId()));
+				passwordChecks.put(getPasswordKey(name, password, domainId), true);
 				return true;
 			}
 
 			// delete the user because we cannot update the password
 			log.info("deleting user " + name + " (for password update)");
 			delete(String.format("users/%s", user.getId()));
+			users.remove(user);
+			removeUserRoleAssignments(user.getId());
+			invalidateTokens(this, name, domainId);
 		}
 
 		log.info("creating user " + name);
-		post(UserResponse.class, "users", "user", new User(name, description, email, password, projectId, domainId));
+		UserResponse response = post(UserResponse.class, "users", "user",
+				new User(name, description, email, password, projectId, domainId));
+		users.put(withId(new User(name, description, email, null, projectId, domainId), response.getUser().getId()));
+		passwordChecks.put(getPasswordKey(name, password, domainId), true);
 
 		return true;
 	}
@@ -137,7 +319,8 @@ public class KeystoneClient extends AbstractOpenStackClient {
 			return false;
 		}
 		log.info("creating role " + name);
-		post(BaseResponse.class, "roles", "role", new Role(name));
+		RoleResponse response = post(RoleResponse.class, "roles", "role", new Role(name));
+		roles.put(response.getRole());
 		return true;
 	}
 
@@ -151,11 +334,13 @@ public class KeystoneClient extends AbstractOpenStackClient {
 
 			log.info("updating domain " + name);
 			patch(stack, String.format("domains/%s", domain.getId()), "domain", new Domain(name, description));
+			domains.put(withId(new Domain(name, description), domain.getId()));
 			return true;
 		}
 
 		log.info("creating domain " + name);
-		post(BaseResponse.class, "domains", "domain", new Domain(name, description));
+		DomainResponse response = post(DomainResponse.class, "domains", "domain", new Domain(name, description));
+		domains.put(response.getDomain());
 		return true;
 	}
 
@@ -169,11 +354,13 @@ public class KeystoneClient extends AbstractOpenStackClient {
 
 			log.info("updating project " + name);
 			patch(stack, String.format("projects/%s", project.getId()), "project", new Project(name, description));
+			projects.put(withId(new Project(name, description), project.getId()));
 			return true;
 		}
 
 		log.info("creating project " + name);
-		post(BaseResponse.class, "projects", "project", new Project(name, description));
+		ProjectResponse response = post(ProjectResponse.class, "projects", "project", new Project(name, description));
+		projects.put(response.getProject());
 		return true;
 	}
 
@@ -188,6 +375,8 @@ public class KeystoneClient extends AbstractOpenStackClient {
 				log.info("updating service " + name);
 				patch(stack, String.format("services/%s", service.getId()), "service",
 						new Service(name, description, type));
+				service = withId(new Service(name, description, type), service.getId());
+				services.put(service);
 				changed = true;
 			}
 		} else {
@@ -196,6 +385,7 @@ public class KeystoneClient extends AbstractOpenStackClient {
 					new Service(name, description, type));
 			changed = true;
 			service = response.getService();
+			services.put(service);
 		}
 		changed |= createEndpoint(stack, service.getId(), "public",
 				String.format(publicURL, stack.get(StackProperty.CONTROLLER_PUBLIC_IP)));
@@ -220,12 +410,15 @@ public class KeystoneClient extends AbstractOpenStackClient {
 			log.info("updating endpoint " + url);
 			patch(stack, String.format("endpoints/%s", endpoint.getId()), "endpoint",
 					new Endpoint(serviceId, _interface, stack.get(StackProperty.REGION), url));
+			endpoints.put(withId(new Endpoint(serviceId, _interface, stack.get(StackProperty.REGION), url),
+					endpoint.getId()));
 
 			return true;
 		}
 		log.info("creating endpoint " + url + " of type " + _interface);
-		post(BaseResponse.class, "endpoints", "endpoint",
+		EndpointResponse response = post(EndpointResponse.class, "endpoints", "endpoint",
 				new Endpoint(serviceId, _interface, stack.get(StackProperty.REGION), url));
+		endpoints.put(response.getEndpoint());
 		return true;
 	}
 
@@ -244,8 +437,8 @@ public class KeystoneClient extends AbstractOpenStackClient {
 		if (role == null)
 			throw new DeploymentException("role " + roleName + " not found");
 
-		boolean hasRole = head(
-				String.format("projects/%s/users/%s/roles/%s", project.getId(), user.getId(), role.getId()), null);
+		String path = String.format("projects/%s/users/%s/roles/%s", project.getId(), user.getId(), role.getId());
+		boolean hasRole = hasRoleAssignment(path);
 
 		if (hasRole) {
 			if (log.isTraceEnabled())
@@ -254,7 +447,8 @@ public class KeystoneClient extends AbstractOpenStackClient {
 		}
 
 		log.info("granting " + roleName + " role to " + userName + " in project " + projectName);
-		put(String.format("projects/%s/users/%s/roles/%s", project.getId(), user.getId(), role.getId()));
+		put(path);
+		addRoleAssignment(path);
 
 		return true;
 	}
@@ -274,8 +468,8 @@ public class KeystoneClient extends AbstractOpenStackClient {
 		if (role == null)
 			throw new DeploymentException("role " + roleName + " not found");
 
-		boolean hasRole = head(
-				String.format("domains/%s/users/%s/roles/%s", domain.getId(), user.getId(), role.getId()), null);
+		String path = String.format("domains/%s/users/%s/roles/%s", domain.getId(), user.getId(), role.getId());
+		boolean hasRole = hasRoleAssignment(path);
 
 		if (hasRole) {
 			if (log.isTraceEnabled())
@@ -284,7 +478,8 @@ public class KeystoneClient extends AbstractOpenStackClient {
 		}
 
 		log.info("granting " + roleName + " role to " + userName + " in domain " + domainName);
-		put(String.format("domains/%s/users/%s/roles/%s", domain.getId(), user.getId(), role.getId()));
+		put(path);
+		addRoleAssignment(path);
 
 		return true;
 	}
@@ -329,8 +524,8 @@ public class KeystoneClient extends AbstractOpenStackClient {
 		return createUser(stack, user, description, email, password, null, domain);
 	}
 
-	public TokenResponse getAdminToken(StackConfig stack) throws DeploymentException {
-		return post(TokenResponse.class, "auth/tokens", "auth", new OSAuth(stack.get(StackProperty.KEYSTONE_ADMIN_USER),
-				stack.get(StackProperty.KEYSTONE_ADMIN_PASSWORD), User.DEFAULT_DOMAIN_ID));
+	public String getAdminToken(StackConfig stack) throws DeploymentException {
+		return getToken(this, stack.get(StackProperty.KEYSTONE_ADMIN_USER),
+				stack.get(StackProperty.KEYSTONE_ADMIN_PASSWORD), User.DEFAULT_DOMAIN_ID);
 	}
 }
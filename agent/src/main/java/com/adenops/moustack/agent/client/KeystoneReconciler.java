@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.config.AgentConfig;
+import com.adenops.moustack.agent.config.StackConfig;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog.GrantEntry;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog.ServiceEntry;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog.UserEntry;
+import com.adenops.moustack.agent.module.ContainerModule;
+
+/**
+ * Reconcile the Keystone catalogs declared by the modules of the plan with the live Keystone state. The whole plan is
+ * reconciled with the first request, operations are sent concurrently in three phases (domains, projects, roles and
+ * services, then users, then role grants) and each module gets back its own change flag.
+ */
+public class KeystoneReconciler {
+	private static final Logger log = LoggerFactory.getLogger(KeystoneReconciler.class);
+
+	private final StackConfig stack;
+	private final KeystoneClient client;
+	private final List<ContainerModule> modules;
+
+	// results per module name, set once the plan has been reconciled
+	private final Map<String, Boolean> changes = new HashMap<>();
+	private final Map<String, DeploymentException> failures = new HashMap<>();
+	private final Set<String> reconciled = new HashSet<>();
+
+	@FunctionalInterface
+	private interface Operation {
+		boolean apply() throws DeploymentException;
+	}
+
+	private static class Task {
+		private final String description;
+		private final Operation operation;
+		private final Set<String> owners = new LinkedHashSet<>();
+
+		private Task(String description, Operation operation) {
+			this.description = description;
+			this.operation = operation;
+		}
+	}
+
+	public KeystoneReconciler(StackConfig stack, KeystoneClient client, List<ContainerModule> modules) {
+		this.stack = stack;
+		this.client = client;
+		this.modules = modules;
+	}
+
+	/**
+	 * Return true if the catalog of this module required a change in Keystone.
+	 */
+	public synchronized boolean reconcile(ContainerModule module) throws DeploymentException {
+		if (reconciled.isEmpty()) {
+			List<ContainerModule> batch = new ArrayList<>(modules);
+			if (!batch.contains(module))
+				batch.add(module);
+			run(batch);
+		} else if (!reconciled.contains(module.getName())) {
+			// not part of the plan, reconcile it alone
+			List<ContainerModule> batch = new ArrayList<>();
+			batch.add(module);
+			run(batch);
+		}
+
+		DeploymentException failure = failures.get(module.getName());
+		if (failure != null)
+			throw new DeploymentException("cannot reconcile keystone catalog of module " + module.getName(), failure);
+
+		return Boolean.TRUE.equals(changes.get(module.getName()));
+	}
+
+	private void run(List<ContainerModule> batch) throws DeploymentException {
+		// an entity declared by several modules is reconciled once, for the first declaration
+		Map<String, Task> entities = new LinkedHashMap<>();
+		Map<String, Task> users = new LinkedHashMap<>();
+		Map<String, Task> grants = new LinkedHashMap<>();
+
+		for (ContainerModule module : batch) {
+			reconciled.add(module.getName());
+			Catalog catalog = module.getCatalog(stack);
+			if (catalog.isEmpty())
+				continue;
+
+			for (Entry<String, String> domain : catalog.getDomains().entrySet())
+				addTask(entities, module, "domain " + domain.getKey(),
+						() -> client.createDomain(stack, domain.getKey(), domain.getValue()));
+			for (Entry<String, String> project : catalog.getProjects().entrySet())
+				addTask(entities, module, "project " + project.getKey(),
+						() -> client.createProject(stack, project.getKey(), project.getValue()));
+			for (String role : catalog.getRoles())
+				addTask(entities, module, "role " + role, () -> client.createRole(stack, role));
+			for (ServiceEntry service : catalog.getServices())
+				addTask(entities, module, "service " + service.getName(),
+						() -> client.createService(stack, service.getName(), service.getDescription(),
+								service.getType(), service.getPublicURL(), service.getInternalURL(),
+								service.getAdminURL()));
+			for (UserEntry user : catalog.getUsers())
+				addTask(users, module, "user " + user.getName(),
+						() -> client.createUser(stack, user.getName(), user.getDescription(), user.getEmail(),
+								user.getPassword(), user.getProject(), user.getDomain()));
+			for (GrantEntry grant : catalog.getGrants()) {
+				if (grant.getProject() != null)
+					addTask(grants, module, "grant " + grant.getKey(),
+							() -> client.grantProjectRole(stack, grant.getUser(), grant.getProject(), grant.getRole()));
+				else
+					addTask(grants, module, "grant " + grant.getKey(),
+							() -> client.grantDomainRole(stack, grant.getUser(), grant.getDomain(), grant.getRole()));
+			}
+		}
+
+		int total = entities.size() + users.size() + grants.size();
+		if (total == 0)
+			return;
+
+		long start = System.currentTimeMillis();
+		// one task per pooled connection to keystone, more would only wait for a connection
+		int concurrency = Math.max(1, AgentConfig.getInstance().getHttpConnections());
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "keystone-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			runPhase(executor, entities);
+			runPhase(executor, users);
+			runPhase(executor, grants);
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info("reconciled {} keystone entities for {} modules in {}ms", total, batch.size(),
+				System.currentTimeMillis() - start);
+	}
+
+	private void addTask(Map<String, Task> tasks, ContainerModule module, String description, Operation operation) {
+		Task task = tasks.get(description);
+		if (task == null) {
+			task = new Task(description, operation);
+			tasks.put(description, task);
+		}
+		task.owners.add(module.getName());
+	}
+
+	private void runPhase(ExecutorService executor, Map<String, Task> tasks) throws DeploymentException {
+		Map<Task, Future<Boolean>> futures = new LinkedHashMap<>();
+		for (Task task : tasks.values())
+			futures.put(task, executor.submit(() -> task.operation.apply()));
+
+		for (Entry<Task, Future<Boolean>> future : futures.entrySet()) {
+			Task task = future.getKey();
+			try {
+				boolean changed = future.getValue().get();
+				for (String owner : task.owners)
+					changes.put(owner, changed || Boolean.TRUE.equals(changes.get(owner)));
+			} catch (ExecutionException e) {
+				// the failure is reported to the owners only, the other modules can still be deployed
+				DeploymentException failure = e.getCause() instanceof DeploymentException
+						? (DeploymentException) e.getCause()
+						: new DeploymentException("error while reconciling " + task.description, e.getCause());
+				log.debug("failed to reconcile {}: {}", task.description, failure.getMessage());
+				for (String owner : task.owners)
+					failures.putIfAbsent(owner, failure);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DeploymentException("interrupted while reconciling keystone catalog", e);
+			}
+		}
+	}
+}
@@ -50,7 +50,7 @@ public class MoustackClient extends AbstractRestClient {
 	}
 
 	private MoustackClient() {
-		super("moustack", AgentConfig.getInstance().getServer(), 3, 1);
+		super("moustack", AgentConfig.getInstance().getServer(), new RetryPolicy(3, 500, 2000));
 
 		// setup basic authentication
 		if (!StringUtils.isBlank(AgentConfig.getInstance().getUser())
@@ -103,6 +103,10 @@ public class MoustackClient extends AbstractRestClient {
 	public ServerCommand readCommand(Response response) {
 		if (response == null)
 			return null;
-		return response.readEntity(ServerCommand.class);
+		try {
+			return response.readEntity(ServerCommand.class);
+		} finally {
+			response.close();
+		}
 	}
 }
@@ -19,28 +19,111 @@
 
 package com.adenops.moustack.agent.client;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentException;
 import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
+import com.adenops.moustack.agent.module.ContainerModule;
 
+/**
+ * Databases, users and grants of the deployment plan. The server state is loaded once, the missing entries of the
+ * whole plan are created with the first module requesting it.
+ */
 public class MySQLClient {
 	private static final Logger log = LoggerFactory.getLogger(MySQLClient.class);
-	private static final int CONNECTION_MAX_RETRY = 10;
-	private static final int CONNECTION_RETRY_SLEEP = 4;
-	private Connection connection;
+	private static final int CONNECTION_TIMEOUT_SECONDS = 5;
+	private static final int SOCKET_TIMEOUT_SECONDS = 60;
+	// the server is often just (re)started, give it about a minute to come up
+	private static final RetryPolicy CONNECTION_RETRY_POLICY = new RetryPolicy(12, 500, 8000);
+	private static final String[] HOSTS = { "localhost", "127.0.0.1" };
+
+	private final StackConfig stack;
+	private final List<ContainerModule> modules;
+	private final Connection connection;
+
+	// snapshot of the server state, kept up to date with our own changes
+	private Set<String> databases;
+	private Map<String, String> users;
+	private Set<String> grants;
+
+	// MySQL 5.7.6+ reads the SET PASSWORD value as cleartext, the hash must be given with the plugin
+	private boolean nativePasswordSql;
+
+	// results per module name, set once the module databases have been provisioned
+	private final Map<String, Boolean> changes = new HashMap<>();
+	private final Map<String, DeploymentException> failures = new HashMap<>();
+	private final Set<String> provisioned = new HashSet<>();
+
+	/**
+	 * A database and the user owning it, with all privileges from localhost.
+	 */
+	public static class Database {
+		private final String name;
+		private final String user;
+		private final String password;
+
+		public Database(String name, String user, String password) {
+			this.name = name;
+			this.user = user;
+			this.password = password;
+		}
+
+		public String getName() {
+			return name;
+		}
 
-	public MySQLClient(StackConfig stack) throws DeploymentException {
+		public String getUser() {
+			return user;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+	}
+
+	private static class Change {
+		private final String description;
+		private final String sql;
+		private final String[] parameters;
+		private final Runnable applied;
+		private final Set<String> owners = new LinkedHashSet<>();
+
+		private Change(String description, Runnable applied, String sql, String... parameters) {
+			this.description = description;
+			this.applied = applied;
+			this.sql = sql;
+			this.parameters = parameters;
+		}
+	}
+
+	public MySQLClient(StackConfig stack, List<ContainerModule> modules) throws DeploymentException {
 		log.debug("initializing MySQL client");
+		this.stack = stack;
+		this.modules = modules;
 		try {
 			Class.forName("com.mysql.cj.jdbc.Driver");
 		} catch (ClassNotFoundException e) {
@@ -48,23 +131,35 @@ public class MySQLClient {
 			throw new DeploymentException("cannot load MySQL driver");
 		}
 
-		for (int i = 0; i < CONNECTION_MAX_RETRY; i++) {
+		Properties properties = new Properties();
+		properties.setProperty("user", "root");
+		properties.setProperty("password", stack.get(StackProperty.MYSQL_ROOT_PASSWORD));
+		properties.setProperty("connectTimeout", String.valueOf(CONNECTION_TIMEOUT_SECONDS * 1000));
+		properties.setProperty("socketTimeout", String.valueOf(SOCKET_TIMEOUT_SECONDS * 1000));
+		connection = connect(properties);
+	}
+
+	private Connection connect(Properties properties) throws DeploymentException {
+		for (int retry = 0;; retry++) {
 			try {
-				Connection connection = DriverManager.getConnection("jdbc:mysql://127.0.0.1/mysql?"
-						+ "user=root&password=" + stack.get(StackProperty.MYSQL_ROOT_PASSWORD));
+				Connection connection = DriverManager.getConnection("jdbc:mysql://127.0.0.1/mysql", properties);
 				connection.setAutoCommit(false);
-				this.connection = connection;
-				return;
+				return connection;
 			} catch (SQLException e) {
-				log.warn("MySQL connection failed, waiting " + CONNECTION_RETRY_SLEEP + "s");
+				if (retry >= CONNECTION_RETRY_POLICY.getMaxRetries()) {
+					log.error("could not connection to MySQL database");
+					throw new DeploymentException("db connection error", e);
+				}
+				long wait = CONNECTION_RETRY_POLICY.getWait(retry);
+				log.warn("MySQL connection failed, waiting " + wait + "ms");
 				try {
-					Thread.sleep(CONNECTION_RETRY_SLEEP * 1000);
+					Thread.sleep(wait);
 				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					throw new DeploymentException("interrupted while connecting to MySQL", e1);
 				}
 			}
 		}
-		log.error("could not connection to MySQL database");
-		throw new DeploymentException("db connection error");
 	}
 
 	private void close(ResultSet resultSet) {
@@ -87,162 +182,207 @@ public class MySQLClient {
 		}
 	}
 
-	private void close(PreparedStatement statement) {
-		if (statement == null)
-			return;
-		try {
-			statement.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Hash of a password as stored by mysql_native_password, so we do not need the server to compare passwords.
+	 */
+	private static String getPasswordHash(String password) {
+		return "*" + DigestUtils.sha1Hex(DigestUtils.sha1(password.getBytes(StandardCharsets.UTF_8))).toUpperCase();
 	}
 
-	private boolean checkDBExist(Connection connection, String name) throws DeploymentException {
-		ResultSet resultSet = null;
-		try {
-			resultSet = connection.getMetaData().getCatalogs();
-			while (resultSet.next()) {
-				if (name.equals(resultSet.getString(1)))
-					return true;
-			}
-		} catch (SQLException e) {
-			throw new DeploymentException("cannot check db existence: " + name, e);
-		} finally {
-			close(resultSet);
+	// the hash column depends on the server: Password for MariaDB and old MySQL, authentication_string for MySQL 5.7+
+	private static String getPasswordHash(ResultSet resultSet) throws SQLException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		for (int i = 1; i <= metaData.getColumnCount(); i++) {
+			String column = metaData.getColumnName(i);
+			if (!"Password".equalsIgnoreCase(column) && !"authentication_string".equalsIgnoreCase(column))
+				continue;
+			String hash = resultSet.getString(i);
+			if (!StringUtils.isEmpty(hash))
+				return hash;
 		}
-		return false;
+		return null;
 	}
 
-	private void createDB(Connection connection, String name) throws DeploymentException {
-		log.info("creating database " + name);
-		Statement stmt = null;
-		try {
-			stmt = connection.createStatement();
-			stmt.executeUpdate("CREATE DATABASE IF NOT EXISTS " + name
-					+ " DEFAULT CHARACTER SET utf8 DEFAULT COLLATE utf8_general_ci");
-		} catch (SQLException e) {
-			throw new DeploymentException("cannot create db: " + name);
-		} finally {
-			close(stmt);
-		}
+	private static String getUserKey(String host, String user) {
+		return user + "@" + host;
+	}
+
+	private static String getGrantKey(String host, String database, String user) {
+		return getUserKey(host, user) + "/" + database;
+	}
+
+	/**
+	 * MariaDB and MySQL before 5.7.6 take a password hash with IDENTIFIED BY PASSWORD and SET PASSWORD, later MySQL
+	 * versions only with IDENTIFIED WITH mysql_native_password AS (in CREATE USER and ALTER USER).
+	 */
+	private static boolean isNativePasswordSql(String version) {
+		if (version.contains("MariaDB"))
+			return false;
+		Matcher matcher = Pattern.compile("^(\\d+)\\.(\\d+)\\.(\\d+)").matcher(version);
+		if (!matcher.find())
+			return true;
+		int major = Integer.parseInt(matcher.group(1));
+		int minor = Integer.parseInt(matcher.group(2));
+		int patch = Integer.parseInt(matcher.group(3));
+		return major > 5 || (major == 5 && (minor > 7 || (minor == 7 && patch >= 6)));
 	}
 
-	private boolean checkUserExist(Connection connection, String host, String name, String password)
-			throws DeploymentException {
-		PreparedStatement stmt = null;
+	/*
+	 * The fields are only assigned once every query succeeded, a failed load is retried by the next provisioning.
+	 */
+	private void loadSnapshot() throws SQLException {
+		String version = connection.getMetaData().getDatabaseProductVersion();
+		boolean nativePassword = isNativePasswordSql(version);
+		log.debug("connected to MySQL server {}", version);
+
+		Set<String> loadedDatabases = new HashSet<>();
+		Map<String, String> loadedUsers = new HashMap<>();
+		Set<String> loadedGrants = new HashSet<>();
+
+		Statement stmt = null;
 		ResultSet resultSet = null;
 		try {
-			stmt = connection.prepareStatement("SELECT 1 FROM user where Host=? and User=? and password=PASSWORD(?)");
-			stmt.setString(1, host);
-			stmt.setString(2, name);
-			stmt.setString(3, password);
-			if (log.isTraceEnabled())
-				log.trace(stmt.toString());
-			resultSet = stmt.executeQuery();
-			return resultSet.next();
-		} catch (SQLException e) {
-			throw new DeploymentException("cannot check user existence: " + name, e);
+			stmt = connection.createStatement();
+
+			resultSet = stmt.executeQuery("SELECT SCHEMA_NAME FROM information_schema.SCHEMATA");
+			while (resultSet.next())
+				loadedDatabases.add(resultSet.getString(1));
+			close(resultSet);
+
+			resultSet = stmt.executeQuery("SELECT * FROM mysql.user");
+			while (resultSet.next())
+				loadedUsers.put(getUserKey(resultSet.getString("Host"), resultSet.getString("User")),
+						getPasswordHash(resultSet));
+			close(resultSet);
+
+			resultSet = stmt.executeQuery("SELECT Host, Db, User FROM mysql.db");
+			while (resultSet.next())
+				loadedGrants.add(getGrantKey(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3)));
 		} finally {
 			close(resultSet);
 			close(stmt);
 		}
+
+		nativePasswordSql = nativePassword;
+		users = loadedUsers;
+		grants = loadedGrants;
+		databases = loadedDatabases;
+		log.debug("loaded {} databases, {} users and {} grants", databases.size(), users.size(), grants.size());
 	}
 
-	private void createUser(Connection connection, String host, String name, String password)
-			throws DeploymentException {
-		log.info("creating user " + name + " for host " + host);
-		PreparedStatement stmt = null;
-		try {
-			stmt = connection.prepareStatement("CREATE USER ?@? IDENTIFIED BY ?");
-			stmt.setString(1, name);
-			stmt.setString(2, host);
-			stmt.setString(3, password);
-			if (log.isTraceEnabled())
-				log.trace(stmt.toString());
-			stmt.executeUpdate();
-		} catch (SQLException e) {
-			throw new DeploymentException("cannot create user: " + name, e);
-		} finally {
-			close(stmt);
+	/**
+	 * Return true if the databases of this module required a change.
+	 */
+	public synchronized boolean provision(ContainerModule module) throws DeploymentException {
+		if (!provisioned.contains(module.getName())) {
+			List<ContainerModule> batch = new ArrayList<>();
+			if (provisioned.isEmpty())
+				batch.addAll(modules);
+			if (!batch.contains(module))
+				batch.add(module);
+			run(batch);
 		}
+
+		DeploymentException failure = failures.get(module.getName());
+		if (failure != null)
+			throw new DeploymentException("cannot provision databases of module " + module.getName(), failure);
+
+		return Boolean.TRUE.equals(changes.get(module.getName()));
 	}
 
-	private boolean checkGrantExist(Connection connection, String host, String database, String name)
-			throws DeploymentException {
-		PreparedStatement stmt = null;
-		ResultSet resultSet = null;
-		try {
-			stmt = connection.prepareStatement("SELECT 1 FROM mysql.db WHERE db=? AND user=? AND host=?;");
-			stmt.setString(1, database);
-			stmt.setString(2, name);
-			stmt.setString(3, host);
-			if (log.isTraceEnabled())
-				log.trace(stmt.toString());
-			resultSet = stmt.executeQuery();
-			return resultSet.next();
-		} catch (SQLException e) {
-			throw new DeploymentException("cannot check user grant: " + name, e);
-		} finally {
-			close(resultSet);
-			close(stmt);
-		}
+	private void addChange(Map<String, Change> pending, ContainerModule module, Change change) {
+		// an entry declared by several modules is created once, for the first declaration
+		pending.computeIfAbsent(change.description, k -> change).owners.add(module.getName());
 	}
 
-	private void grantUser(Connection connection, String host, String database, String name)
-			throws DeploymentException {
-		log.info("granting user " + name + " on database " + database + " (" + host + ")");
-		PreparedStatement stmt = null;
+	private void run(List<ContainerModule> batch) throws DeploymentException {
 		try {
-			stmt = connection.prepareStatement("GRANT ALL PRIVILEGES ON " + database + ".* TO ?@?");
-			stmt.setString(1, name);
-			stmt.setString(2, host);
-			if (log.isTraceEnabled())
-				log.trace(stmt.toString());
-			stmt.executeUpdate();
+			if (databases == null)
+				loadSnapshot();
 		} catch (SQLException e) {
-			throw new DeploymentException("cannot grant user: " + name, e);
-		} finally {
-			close(stmt);
+			throw new DeploymentException("cannot load databases", e);
+		}
+
+		Map<String, Change> pending = new LinkedHashMap<>();
+		for (ContainerModule module : batch) {
+			provisioned.add(module.getName());
+			try {
+				addChanges(pending, module);
+			} catch (DeploymentException e) {
+				failures.put(module.getName(), e);
+			}
 		}
+
+		apply(pending.values());
 	}
 
-	public boolean createDatabaseUser(String database, String user, String password) throws DeploymentException {
-		try {
-			boolean changed = false;
+	private void addChanges(Map<String, Change> pending, ContainerModule module) throws DeploymentException {
+		String createUserSql = nativePasswordSql ? "CREATE USER ?@? IDENTIFIED WITH mysql_native_password AS ?"
+				: "CREATE USER ?@? IDENTIFIED BY PASSWORD ?";
+		String updatePasswordSql = nativePasswordSql ? "ALTER USER ?@? IDENTIFIED WITH mysql_native_password AS ?"
+				: "SET PASSWORD FOR ?@? = ?";
 
-			if (!checkDBExist(connection, database)) {
-				createDB(connection, database);
-				changed = true;
-			}
+		for (Database database : module.getDatabases(stack)) {
+			String name = database.getName();
+			String user = database.getUser();
+			String hash = getPasswordHash(database.getPassword());
 
-			if (!checkUserExist(connection, "localhost", user, password)) {
-				createUser(connection, "localhost", user, password);
-				createUser(connection, "127.0.0.1", user, password);
-				changed = true;
-			}
+			if (!databases.contains(name))
+				addChange(pending, module, new Change("creating database " + name, () -> databases.add(name),
+						"CREATE DATABASE IF NOT EXISTS " + name
+								+ " DEFAULT CHARACTER SET utf8 DEFAULT COLLATE utf8_general_ci"));
 
-			if (!checkGrantExist(connection, "localhost", database, user)) {
-				grantUser(connection, "localhost", database, user);
-				changed = true;
-			}
+			for (String host : HOSTS) {
+				String userKey = getUserKey(host, user);
+				if (!users.containsKey(userKey))
+					addChange(pending, module, new Change("creating user " + user + " for host " + host,
+							() -> users.put(userKey, hash), createUserSql, user, host, hash));
+				else if (!hash.equalsIgnoreCase(users.get(userKey)))
+					addChange(pending, module, new Change("updating password of user " + user + " for host " + host,
+							() -> users.put(userKey, hash), updatePasswordSql, user, host, hash));
 
-			if (!checkGrantExist(connection, "127.0.0.1", database, user)) {
-				grantUser(connection, "127.0.0.1", database, user);
-				changed = true;
+				String grantKey = getGrantKey(host, name, user);
+				if (!grants.contains(grantKey))
+					addChange(pending, module,
+							new Change("granting user " + user + " on database " + name + " (" + host + ")",
+									() -> grants.add(grantKey), "GRANT ALL PRIVILEGES ON " + name + ".* TO ?@?",
+									user, host));
 			}
+		}
+	}
 
-			connection.commit();
-
-			return changed;
-		} catch (SQLException e) {
-			if (connection != null) {
+	/**
+	 * Execute the changes, a failure is reported to the modules declaring the entry, the others keep going.
+	 */
+	private void apply(Iterable<Change> pending) {
+		for (Change change : pending) {
+			log.info(change.description);
+			PreparedStatement stmt = null;
+			try {
+				stmt = connection.prepareStatement(change.sql);
+				for (int i = 0; i < change.parameters.length; i++)
+					stmt.setString(i + 1, change.parameters[i]);
+				if (log.isTraceEnabled())
+					log.trace(stmt.toString());
+				stmt.executeUpdate();
+				// DDL statements are committed implicitly, the snapshot follows each of them
+				connection.commit();
+				change.applied.run();
+				for (String owner : change.owners)
+					changes.put(owner, true);
+			} catch (SQLException e) {
+				log.error("error while " + change.description + ": " + e.getMessage());
 				try {
 					connection.rollback();
 				} catch (SQLException e1) {
 					e1.printStackTrace();
 				}
+				for (String owner : change.owners)
+					failures.putIfAbsent(owner,
+							new DeploymentException("error while " + change.description, e));
+			} finally {
+				close(stmt);
 			}
-			throw new DeploymentException("cannot configure database: " + database, e);
 		}
 	}
 }
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retries allowed for all the API calls of a run, so an unavailable service cannot stall a whole run with retries.
+ * Also keeps track of the retries statistics.
+ */
+public class RetryBudget {
+	private static final AtomicInteger remaining = new AtomicInteger(Integer.MAX_VALUE);
+	private static final LongAdder retries = new LongAdder();
+	private static final LongAdder sleepTime = new LongAdder();
+	private static final LongAdder exhausted = new LongAdder();
+	private static final LongAdder rejections = new LongAdder();
+
+	private RetryBudget() {
+	}
+
+	/**
+	 * Start a new run with the given budget.
+	 */
+	public static void reset(int budget) {
+		remaining.set(budget);
+		retries.reset();
+		sleepTime.reset();
+		exhausted.reset();
+		rejections.reset();
+	}
+
+	/**
+	 * Return false if the budget is exhausted.
+	 */
+	public static boolean acquire() {
+		if (remaining.getAndUpdate(value -> value > 0 ? value - 1 : 0) > 0) {
+			retries.increment();
+			return true;
+		}
+		exhausted.increment();
+		return false;
+	}
+
+	public static void recordSleep(long milliseconds) {
+		sleepTime.add(milliseconds);
+	}
+
+	public static void recordRejection() {
+		rejections.increment();
+	}
+
+	public static String getStatistics() {
+		return String.format("%d retries (%dms waiting), %d refused by the budget, %d calls failed fast",
+				retries.sum(), sleepTime.sum(), exhausted.sum(), rejections.sum());
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy for API calls failing with a connection error: exponential backoff with full jitter (the wait is
+ * random between 0 and the backoff), so clients retrying at the same time do not hit the service together.
+ */
+public class RetryPolicy {
+	private final int maxRetries;
+	private final long baseWait;
+	private final long maxWait;
+
+	/**
+	 * @param maxRetries
+	 *            retries after the first attempt
+	 * @param baseWait
+	 *            backoff of the first retry, in milliseconds
+	 * @param maxWait
+	 *            maximum backoff, in milliseconds
+	 */
+	public RetryPolicy(int maxRetries, long baseWait, long maxWait) {
+		this.maxRetries = maxRetries;
+		this.baseWait = baseWait;
+		this.maxWait = maxWait;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Time to wait before the given retry (starting at 0).
+	 */
+	public long getWait(int retry) {
+		long backoff = retry >= 30 ? maxWait : Math.min(maxWait, baseWait << retry);
+		return ThreadLocalRandom.current().nextLong(backoff + 1);
+	}
+}
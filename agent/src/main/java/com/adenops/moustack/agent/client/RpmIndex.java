@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.model.exec.ExecResult;
+import com.adenops.moustack.agent.util.ProcessUtil;
+import com.adenops.moustack.agent.util.RpmVersionUtil;
+
+/**
+ * Snapshot of the installed RPM packages and of the yum version locks.
+ *
+ * Built with a single "rpm -qa" and a single read of the versionlock list, it must be discarded after any
+ * operation modifying the packages or the locks.
+ */
+public class RpmIndex {
+	private static final Logger log = LoggerFactory.getLogger(RpmIndex.class);
+	private static final String QUERY_FORMAT = "%{NAME}\\t%{EPOCH}\\t%{VERSION}\\t%{RELEASE}\\t%{ARCH}\\n";
+	private static final Path VERSIONLOCK_CONF = Paths.get("/etc/yum/pluginconf.d/versionlock.conf");
+	private static final Path VERSIONLOCK_LIST = Paths.get("/etc/yum/pluginconf.d/versionlock.list");
+	private static final Pattern LOCKLIST_PATTERN = Pattern.compile("^\\s*locklist\\s*=\\s*(\\S+)\\s*$");
+	private static final Pattern LOCK_PATTERN = Pattern.compile("^(?:\\d+:)?(.+)\\.\\*$");
+
+	public static class Entry {
+		private final String name;
+		private final String epoch;
+		private final String version;
+		private final String release;
+		private final String arch;
+
+		private Entry(String name, String epoch, String version, String release, String arch) {
+			this.name = name;
+			this.epoch = epoch;
+			this.version = version;
+			this.release = release;
+			this.arch = arch;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		// version-release, the format used for the modules required versions
+		public String getInstalledVersion() {
+			return String.format("%s-%s", version, release);
+		}
+
+		public String getEVR() {
+			return epoch == null ? getInstalledVersion() : String.format("%s:%s-%s", epoch, version, release);
+		}
+
+		public String getFullName() {
+			return String.format("%s-%s-%s.%s", name, version, release, arch);
+		}
+	}
+
+	// all installed packages
+	private final List<Entry> entries;
+	// name -> most recent installed package (multiple versions can be installed, i.e. kernel)
+	private final Map<String, Entry> packages;
+	// locked name-version-release
+	private final Set<String> locks;
+
+	private RpmIndex(List<Entry> entries, Set<String> locks) {
+		this.entries = entries;
+		this.locks = locks;
+		this.packages = new HashMap<>();
+		for (Entry entry : entries) {
+			Entry previous = packages.get(entry.getName());
+			if (previous == null || RpmVersionUtil.compareEVR(entry.getEVR(), previous.getEVR()) > 0)
+				packages.put(entry.getName(), entry);
+		}
+	}
+
+	public static RpmIndex load() throws DeploymentException {
+		RpmIndex index = new RpmIndex(loadPackages(), loadLocks());
+		log.debug("{} packages installed, {} packages locked", index.packages.size(), index.locks.size());
+		return index;
+	}
+
+	private static List<Entry> loadPackages() throws DeploymentException {
+		ExecResult execResult = ProcessUtil.execute(null, null, null, false, "rpm", "-qa", "--queryformat",
+				QUERY_FORMAT);
+
+		List<Entry> entries = new ArrayList<>();
+		try (BufferedReader br = new BufferedReader(
+				new InputStreamReader(execResult.getStdout().toInputStream(), StandardCharsets.UTF_8))) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 5)
+					continue;
+
+				entries.add(new Entry(fields[0], "(none)".equals(fields[1]) ? null : fields[1], fields[2], fields[3],
+						fields[4]));
+			}
+		} catch (IOException e) {
+			throw new DeploymentException("error while parsing installed packages", e);
+		}
+		return entries;
+	}
+
+	/*
+	 * The lock list is read directly when we can find it, yum is only used as a fallback as its startup is slow.
+	 */
+	private static Set<String> loadLocks() throws DeploymentException {
+		try {
+			Path lockList = getLockList();
+			if (Files.isRegularFile(lockList)) {
+				try (InputStream is = Files.newInputStream(lockList)) {
+					return parseLocks(new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8)));
+				}
+			}
+
+			log.debug("versionlock list not found, querying yum");
+			ExecResult execResult = ProcessUtil.execute(null, null, null, true, "yum", "versionlock", "list");
+			return parseLocks(new BufferedReader(
+					new StringReader(new String(execResult.getStdout().toByteArray(), StandardCharsets.UTF_8))));
+		} catch (IOException e) {
+			log.error("error while parsing version lock", e);
+			return Collections.emptySet();
+		}
+	}
+
+	private static Path getLockList() throws IOException {
+		if (!Files.isRegularFile(VERSIONLOCK_CONF))
+			return VERSIONLOCK_LIST;
+
+		for (String line : Files.readAllLines(VERSIONLOCK_CONF, StandardCharsets.UTF_8)) {
+			Matcher matcher = LOCKLIST_PATTERN.matcher(line);
+			if (matcher.matches())
+				return Paths.get(matcher.group(1));
+		}
+		return VERSIONLOCK_LIST;
+	}
+
+	private static Set<String> parseLocks(BufferedReader br) throws IOException {
+		Set<String> locks = new HashSet<>();
+		String line = null;
+		while ((line = br.readLine()) != null) {
+			Matcher matcher = LOCK_PATTERN.matcher(line.trim());
+			if (matcher.matches())
+				locks.add(matcher.group(1));
+		}
+		return locks;
+	}
+
+	public Entry get(String name) {
+		return packages.get(name);
+	}
+
+	public boolean isLocked(String name, String version) {
+		return locks.contains(String.format("%s-%s", name, version));
+	}
+
+	public List<String> getFullNames() {
+		List<String> names = new ArrayList<>(entries.size());
+		for (Entry entry : entries)
+			names.add(entry.getFullName());
+		Collections.sort(names);
+		return names;
+	}
+}
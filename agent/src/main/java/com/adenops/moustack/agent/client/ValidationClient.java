@@ -19,10 +19,19 @@
 
 package com.adenops.moustack.agent.client;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -34,40 +43,194 @@ import com.adenops.moustack.agent.DeploymentException;
 import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 
+/**
+ * Endpoint validation for the whole run. Probes are registered by the modules and polled concurrently in the
+ * background, the deployment only waits for them when a module needs the endpoint of another one.
+ */
 public class ValidationClient {
 	private static final Logger log = LoggerFactory.getLogger(ValidationClient.class);
-	private static final int MAX_RETRIES = 20;
-	private static final int RETRY_WAIT = 1;
+	private static final int TIMEOUT_SECONDS = 20;
+	private static final int RETRY_WAIT_MIN_MS = 100;
+	private static final int RETRY_WAIT_MAX_MS = 1000;
+	private static final int CONCURRENCY = 4;
 	protected final Client client;
+	private final ScheduledThreadPoolExecutor executor;
+
+	// probes registered during the run, by owner (the module name)
+	private final Map<String, List<Probe>> probes = new LinkedHashMap<>();
+
+	/**
+	 * Check done before each attempt, to abort the validation early (i.e. the service died).
+	 */
+	public interface LivenessCheck {
+		void check() throws DeploymentException;
+	}
 
 	public ValidationClient(StackConfig stack) throws DeploymentException {
-		client = ClientBuilder.newBuilder().build();
+		client = HttpTransport.getInstance().newClient();
+		executor = new ScheduledThreadPoolExecutor(CONCURRENCY, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "validation-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// the client lives for the whole run, do not keep idle threads around
+		executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+		executor.allowCoreThreadTimeOut(true);
+		executor.setRemoveOnCancelPolicy(true);
 	}
 
-	public void validateEndpoint(StackConfig stack, String name, String url, int expectedStatus)
-			throws DeploymentException {
-		WebTarget webTarget = client.target(String.format(url, stack.get(StackProperty.CONTROLLER_MANAGEMENT_IP)));
-		Invocation.Builder invocationBuilder = webTarget.request(MediaType.APPLICATION_JSON_TYPE);
+	private class Probe implements Runnable {
+		private final String name;
+		private final WebTarget webTarget;
+		private final int expectedStatus;
+		private final LivenessCheck livenessCheck;
+		private final long start = System.currentTimeMillis();
+		private final long deadline = start + TIMEOUT_SECONDS * 1000;
+		private final CompletableFuture<Long> result = new CompletableFuture<>();
+		private int retryWait = RETRY_WAIT_MIN_MS;
+		private int attempts;
+
+		private Probe(String name, WebTarget webTarget, int expectedStatus, LivenessCheck livenessCheck) {
+			this.name = name;
+			this.webTarget = webTarget;
+			this.expectedStatus = expectedStatus;
+			this.livenessCheck = livenessCheck;
+		}
+
+		@Override
+		public void run() {
+			if (result.isDone())
+				return;
 
-		for (int i = 0; i <= MAX_RETRIES; i++) {
 			try {
-				Response response = invocationBuilder.get();
-				if (response.getStatus() == expectedStatus) {
-					log.trace("validation succeed for endpoint {}", webTarget.getUri());
-					return;
-				}
-			} catch (ProcessingException e) {
-				// ignore
+				if (livenessCheck != null)
+					livenessCheck.check();
+			} catch (DeploymentException e) {
+				result.completeExceptionally(e);
+				return;
+			} catch (RuntimeException e) {
+				result.completeExceptionally(new DeploymentException("error while validating [" + name + "] API", e));
+				return;
 			}
 
-			if (i == MAX_RETRIES)
-				throw new DeploymentException("connection error with [" + name + "] API");
+			attempts++;
+			if (isReady()) {
+				long elapsed = System.currentTimeMillis() - start;
+				log.info("[{}] API ready after {}ms ({} attempts)", name, elapsed, attempts);
+				result.complete(elapsed);
+				return;
+			}
+
+			if (System.currentTimeMillis() >= deadline) {
+				result.completeExceptionally(new DeploymentException("connection error with [" + name + "] API"));
+				return;
+			}
 
-			log.debug("failed to connect to [{}], waiting {}s", name, RETRY_WAIT);
+			// short waits first, services are usually ready soon after their container
+			log.debug("failed to connect to [{}], waiting {}ms", name, retryWait);
+			executor.schedule(this, retryWait, TimeUnit.MILLISECONDS);
+			retryWait = Math.min(retryWait * 2, RETRY_WAIT_MAX_MS);
+		}
+
+		private boolean isReady() {
+			Response response = null;
 			try {
-				Thread.sleep(RETRY_WAIT * 1000);
+				response = webTarget.request(MediaType.APPLICATION_JSON_TYPE).get();
+				return response.getStatus() == expectedStatus;
+			} catch (ProcessingException e) {
+				return false;
+			} finally {
+				if (response != null)
+					response.close();
+			}
+		}
+
+		private long await() throws DeploymentException {
+			try {
+				return result.get();
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DeploymentException("interrupted while validating [" + name + "] API", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof DeploymentException)
+					throw (DeploymentException) e.getCause();
+				throw new DeploymentException("error while validating [" + name + "] API", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Start polling an endpoint in the background, the result is retrieved with await(owner).
+	 */
+	public void register(String owner, StackConfig stack, String name, String url, int expectedStatus,
+			LivenessCheck livenessCheck) throws DeploymentException {
+		WebTarget webTarget = client.target(String.format(url, stack.get(StackProperty.CONTROLLER_MANAGEMENT_IP)));
+		Probe probe = new Probe(name, webTarget, expectedStatus, livenessCheck);
+		synchronized (probes) {
+			probes.computeIfAbsent(owner, k -> new ArrayList<>()).add(probe);
+		}
+		log.debug("validating [{}] API at {}", name, webTarget.getUri());
+		executor.execute(probe);
+	}
+
+	private List<Probe> getProbes(String owner) {
+		synchronized (probes) {
+			List<Probe> ownerProbes = probes.get(owner);
+			return ownerProbes == null ? new ArrayList<>() : new ArrayList<>(ownerProbes);
+		}
+	}
+
+	public boolean hasProbes(String owner) {
+		return !getProbes(owner).isEmpty();
+	}
+
+	/**
+	 * Wait for all the endpoints registered by an owner to be ready.
+	 */
+	public void await(String owner) throws DeploymentException {
+		for (Probe probe : getProbes(owner))
+			probe.await();
+	}
+
+	/**
+	 * Abort the probes still running, called when the deployment failed.
+	 */
+	public void cancel() {
+		List<Probe> all = new ArrayList<>();
+		synchronized (probes) {
+			for (List<Probe> ownerProbes : probes.values())
+				all.addAll(ownerProbes);
+		}
+		for (Probe probe : all)
+			probe.result.completeExceptionally(new DeploymentException("validation of [" + probe.name + "] aborted"));
+	}
+
+	/**
+	 * Time-to-ready of each validated endpoint, for the end of run statistics.
+	 */
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (probes) {
+			for (List<Probe> ownerProbes : probes.values()) {
+				for (Probe probe : ownerProbes) {
+					if (sb.length() > 0)
+						sb.append(", ");
+					sb.append(probe.name);
+					sb.append("=");
+					if (!probe.result.isDone())
+						sb.append("pending");
+					else if (probe.result.isCompletedExceptionally())
+						sb.append("failed");
+					else
+						sb.append(probe.result.join() + "ms");
+				}
 			}
 		}
+		return sb.toString();
 	}
 }
@@ -19,14 +19,12 @@
 
 package com.adenops.moustack.agent.client;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -37,22 +35,33 @@ import com.adenops.moustack.agent.DeploymentException;
 import com.adenops.moustack.agent.model.exec.ExecResult;
 import com.adenops.moustack.agent.model.pkg.RPMPackageInfo;
 import com.adenops.moustack.agent.util.ProcessUtil;
+import com.adenops.moustack.agent.util.RpmVersionUtil;
 
 public class YumClient extends AbstractPackagingClient {
 	private static final Logger log = LoggerFactory.getLogger(YumClient.class);
-	private static final Pattern INFO_KEY_PATTERN = Pattern.compile("^([^ :]+) *: (.*)$");
+
+	// installed packages and locks, discarded on each modification
+	private RpmIndex index;
 
 	private void yum(String action, String... packages) throws DeploymentException {
+		index = null;
 		String[] command = ArrayUtils
 				.addAll(new String[] { "yum", action, "--assumeyes", "--debuglevel=0", "--errorlevel=0" }, packages);
 		ProcessUtil.execute(command);
 	}
 
+	private RpmIndex getIndex() throws DeploymentException {
+		if (index == null)
+			index = RpmIndex.load();
+		return index;
+	}
+
 	private List<RPMPackageInfo> toPackageInfo(String... pkgs) throws DeploymentException {
 		if (pkgs.length == 0)
 			return Collections.emptyList();
 
 		List<RPMPackageInfo> result = new ArrayList<>();
+		RpmIndex index = getIndex();
 
 		for (String pkg : pkgs) {
 			String[] parts = pkg.split("=", 2);
@@ -60,80 +69,25 @@ public class YumClient extends AbstractPackagingClient {
 			String version = parts.length > 1 ? parts[1] : null;
 
 			RPMPackageInfo packageInfo = new RPMPackageInfo(name, version);
-			ExecResult execResult = null;
-
-			// first, handle versionlock information
-			if (version != null) {
-				execResult = ProcessUtil.execute(null, null, null, true, "yum", "versionlock", "list");
-				try (BufferedReader br = new BufferedReader(
-						new InputStreamReader(execResult.getStdout().toInputStream()))) {
-					Pattern versionLockPattern = Pattern
-							.compile(String.format("^\\d:%s\\.\\*$", packageInfo.getFullName()));
-					String line = null;
-					while ((line = br.readLine()) != null) {
-						if (line.isEmpty())
-							continue;
-
-						if (versionLockPattern.matcher(line).matches()) {
-							packageInfo.setLocked(true);
-							break;
-						}
-					}
-				} catch (IOException e) {
-					log.error("error while parsing version lock", e);
-				}
-			}
+			if (version != null)
+				packageInfo.setLocked(index.isLocked(name, version));
 
-			// now we extract and parse package information
-			execResult = ProcessUtil.execute(null, null, null, true, "rpm", "-qi", packageInfo.getName());
-			packageInfo.setInstalled(execResult.getExitCode() == 0);
+			RpmIndex.Entry entry = index.get(name);
+			packageInfo.setInstalled(entry != null);
+			if (entry != null)
+				packageInfo.setInstalledVersion(entry.getInstalledVersion());
 
 			result.add(packageInfo);
-
-			if (!packageInfo.isInstalled())
-				continue;
-
-			try (BufferedReader br = new BufferedReader(
-					new InputStreamReader(execResult.getStdout().toInputStream()))) {
-				String installedVersion = null;
-				String installedRelease = null;
-				String line = null;
-				while ((line = br.readLine()) != null) {
-					if (line.isEmpty())
-						continue;
-
-					Matcher matcher = INFO_KEY_PATTERN.matcher(line);
-
-					// if not matching or invalid, we can skip
-					if (!matcher.matches() || StringUtils.isBlank(matcher.group(1))
-							|| StringUtils.isBlank(matcher.group(2)))
-						continue;
-
-					switch (matcher.group(1)) {
-					case "Version":
-						installedVersion = matcher.group(2);
-						break;
-
-					case "Release":
-						installedRelease = matcher.group(2);
-						break;
-					}
-					packageInfo.setInstalledVersion(String.format("%s-%s", installedVersion, installedRelease));
-				}
-			} catch (IOException e) {
-				throw new DeploymentException("error while parsing package information", e);
-			}
 		}
 
 		return result;
 	}
 
 	@Override
-	public boolean install(String... packages) throws DeploymentException {
+	protected Set<String> installPackages(String... packages) throws DeploymentException {
+		Set<String> changed = new HashSet<>();
 		if (packages.length == 0)
-			return false;
-
-		boolean changed = false;
+			return changed;
 
 		List<RPMPackageInfo> packagesInfo = toPackageInfo(packages);
 
@@ -146,7 +100,9 @@ public class YumClient extends AbstractPackagingClient {
 			// if the package is not installed or at the wrong version
 			if (!packageInfo.isInstalled() || (packageInfo.isInstalled()
 					&& !StringUtils.isBlank(packageInfo.getRequiredVersion())
-					&& !StringUtils.equals(packageInfo.getRequiredVersion(), packageInfo.getInstalledVersion()))) {
+					&& RpmVersionUtil.compareEVR(packageInfo.getInstalledVersion(),
+							packageInfo.getRequiredVersion()) != 0)) {
+				changed.add(packageInfo.getName());
 
 				// if not locked, we need to ensure we unlock before installing the package because it could
 				// be locked to another version.
@@ -156,7 +112,7 @@ public class YumClient extends AbstractPackagingClient {
 				// find out if we need to install or downgrade
 				if (!StringUtils.isBlank(packageInfo.getRequiredVersion())
 						&& !StringUtils.isBlank(packageInfo.getInstalledVersion())
-						&& StringUtils.compareIgnoreCase(packageInfo.getInstalledVersion(),
+						&& RpmVersionUtil.compareEVR(packageInfo.getInstalledVersion(),
 								packageInfo.getRequiredVersion()) > 0)
 					packagesToDowngrade.add(packageInfo.getFullName());
 				else
@@ -164,37 +120,33 @@ public class YumClient extends AbstractPackagingClient {
 			}
 
 			// if we require a specific version, we may have to (re-)lock
-			if (!StringUtils.isBlank(packageInfo.getRequiredVersion()) && !packageInfo.isLocked())
+			if (!StringUtils.isBlank(packageInfo.getRequiredVersion()) && !packageInfo.isLocked()) {
+				changed.add(packageInfo.getName());
 				packagesToLock.add(packageInfo.getFullName());
+			}
 		}
 
 		if (!packagesToUnlock.isEmpty()) {
-			changed = true;
-
 			log.debug("unlocking " + String.join(" ", packagesToUnlock));
+			index = null;
 			String[] command = ArrayUtils.addAll(new String[] { "yum", "versionlock", "delete" },
 					packagesToUnlock.toArray(new String[packagesToUnlock.size()]));
 			ProcessUtil.execute(null, null, null, true, command);
 		}
 
 		if (!packagesToInstall.isEmpty()) {
-			changed = true;
-
 			log.info("installing " + String.join(" ", packagesToInstall));
 			yum("install", packagesToInstall.toArray(new String[packagesToInstall.size()]));
 		}
 
 		if (!packagesToDowngrade.isEmpty()) {
-			changed = true;
-
 			log.info("downgrading " + String.join(" ", packagesToDowngrade));
 			yum("downgrade", packagesToDowngrade.toArray(new String[packagesToDowngrade.size()]));
 		}
 
 		if (!packagesToLock.isEmpty()) {
-			changed = true;
-
 			log.info("locking " + String.join(" ", packagesToLock));
+			index = null;
 			String[] command = ArrayUtils.addAll(new String[] { "yum", "versionlock", "add" },
 					packagesToLock.toArray(new String[packagesToLock.size()]));
 			ProcessUtil.execute(null, null, null, false, command);
@@ -204,9 +156,27 @@ public class YumClient extends AbstractPackagingClient {
 	}
 
 	@Override
-	public boolean remove(String... packages) throws DeploymentException {
+	protected void prefetchPackages(String... packages) throws DeploymentException {
+		// downgrades are left out, yum only downloads them with the downgrade action
+		String[] packagesToDownload = toPackageInfo(packages).stream()
+				.filter(p -> !p.isInstalled() || (!StringUtils.isBlank(p.getRequiredVersion())
+						&& RpmVersionUtil.compareEVR(p.getInstalledVersion(), p.getRequiredVersion()) < 0))
+				.map(p -> p.getFullName()).toArray(size -> new String[size]);
+
+		if (packagesToDownload.length == 0)
+			return;
+
+		log.debug("downloading " + String.join(" ", packagesToDownload));
+		String[] command = ArrayUtils.addAll(
+				new String[] { "yum", "install", "--downloadonly", "--assumeyes", "--debuglevel=0", "--errorlevel=0" },
+				packagesToDownload);
+		ProcessUtil.execute(null, null, null, true, command);
+	}
+
+	@Override
+	protected Set<String> removePackages(String... packages) throws DeploymentException {
 		if (packages.length == 0)
-			return false;
+			return Collections.emptySet();
 
 		List<RPMPackageInfo> packagesInfo = toPackageInfo(packages);
 
@@ -214,12 +184,12 @@ public class YumClient extends AbstractPackagingClient {
 				.toArray(size -> new String[size]);
 
 		if (packagesToRemove.length == 0)
-			return false;
+			return Collections.emptySet();
 
-		log.info("removing " + String.join(" ", packages));
+		log.info("removing " + String.join(" ", packagesToRemove));
 		yum("erase", packagesToRemove);
 
-		return true;
+		return new HashSet<>(Arrays.asList(packagesToRemove));
 	}
 
 	@Override
@@ -227,7 +197,17 @@ public class YumClient extends AbstractPackagingClient {
 		ExecResult execResult = ProcessUtil.execute(null, null, null, true, "rpm", "-q", "yum-plugin-versionlock");
 		if (execResult.getExitCode() != 0) {
 			log.info("installing required package yum-plugin-versionlock");
-			yum("install", "yum-plugin-versionlock");
+			synchronized (this) {
+				yum("install", "yum-plugin-versionlock");
+			}
 		}
 	}
+
+	@Override
+	public synchronized String getInstalledPackages() throws DeploymentException {
+		StringBuilder sb = new StringBuilder();
+		for (String name : getIndex().getFullNames())
+			sb.append(name).append('\n');
+		return sb.toString();
+	}
 }
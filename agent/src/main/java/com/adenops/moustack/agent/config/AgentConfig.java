@@ -33,8 +33,17 @@ public class AgentConfig {
 	private String password;
 	private boolean sslVerify;
 	private boolean runOnce;
+	private boolean force;
 	private String configDir;
+	private String stateDir;
 	private LogLevel logLevel;
+	private int workers;
+	private int registryPulls;
+	private int httpConnections;
+	private int httpConnectTimeout;
+	private int httpReadTimeout;
+	private boolean httpGzip;
+	private int retryBudget;
 
 	private AgentConfig() {
 	}
@@ -68,6 +77,11 @@ public class AgentConfig {
 		this.configDir = configDir;
 	}
 
+	@Argument(property = "state.dir", placeholder = "STATE_DIR", longarg = "--state-dir", defaultvalue = "/var/lib/moustack/state", description = "State directory (where the agent keeps track of the last successful deployment)")
+	public void setStateDir(String stateDir) {
+		this.stateDir = stateDir;
+	}
+
 	@Argument(property = "server.url", placeholder = "SERVER", shortarg = "-s", longarg = "--server", mandatory = true, description = "Server URL (example: http://moustackmaster:8080)")
 	public void setServer(String server) {
 		this.server = server;
@@ -83,11 +97,51 @@ public class AgentConfig {
 		this.runOnce = runOnce;
 	}
 
+	@Argument(type = Type.FLAG, longarg = "--force", description = "Deploy all modules, even the ones which did not change since the last run")
+	public void setForce(boolean force) {
+		this.force = force;
+	}
+
 	@Argument(clazz = LogLevel.class, property = "log.level", placeholder = "LEVEL", shortarg = "-L", longarg = "--log-level", defaultvalue = "INFO", description = "Log level")
 	public void setLogLevel(LogLevel logLevel) {
 		this.logLevel = logLevel;
 	}
 
+	@Argument(clazz = Integer.class, property = "deployment.workers", placeholder = "WORKERS", shortarg = "-w", longarg = "--workers", defaultvalue = "4", description = "Maximum number of modules deployed concurrently")
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	@Argument(clazz = Integer.class, property = "docker.registry.pulls", placeholder = "PULLS", longarg = "--registry-pulls", defaultvalue = "3", description = "Maximum number of images pulled concurrently from a registry")
+	public void setRegistryPulls(int registryPulls) {
+		this.registryPulls = registryPulls;
+	}
+
+	@Argument(clazz = Integer.class, property = "http.connections", placeholder = "CONNECTIONS", longarg = "--http-connections", defaultvalue = "8", description = "Maximum number of pooled HTTP connections per host")
+	public void setHttpConnections(int httpConnections) {
+		this.httpConnections = httpConnections;
+	}
+
+	@Argument(clazz = Integer.class, property = "http.timeout.connect", placeholder = "SECONDS", longarg = "--http-connect-timeout", defaultvalue = "10", description = "HTTP connect timeout")
+	public void setHttpConnectTimeout(int httpConnectTimeout) {
+		this.httpConnectTimeout = httpConnectTimeout;
+	}
+
+	@Argument(clazz = Integer.class, property = "http.timeout.read", placeholder = "SECONDS", longarg = "--http-read-timeout", defaultvalue = "120", description = "HTTP read timeout (must be longer than the server long polling timeout)")
+	public void setHttpReadTimeout(int httpReadTimeout) {
+		this.httpReadTimeout = httpReadTimeout;
+	}
+
+	@Argument(type = Type.FLAG, property = "http.gzip", longarg = "--http-gzip", description = "Request gzip compressed HTTP responses")
+	public void setHttpGzip(boolean httpGzip) {
+		this.httpGzip = httpGzip;
+	}
+
+	@Argument(clazz = Integer.class, property = "http.retry.budget", placeholder = "RETRIES", longarg = "--retry-budget", defaultvalue = "100", description = "Maximum number of API calls retries during a run")
+	public void setRetryBudget(int retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+
 	@Argument(type = Type.CONFIGURATION, shortarg = "-c", longarg = "--config", defaultvalue = "/etc/moustack-agent", description = "Configuration file")
 	public void _config() {
 	}
@@ -112,6 +166,10 @@ public class AgentConfig {
 		return configDir;
 	}
 
+	public String getStateDir() {
+		return stateDir;
+	}
+
 	public String getServer() {
 		return server;
 	}
@@ -120,6 +178,10 @@ public class AgentConfig {
 		return runOnce;
 	}
 
+	public boolean isForce() {
+		return force;
+	}
+
 	public String getProfile() {
 		return profile;
 	}
@@ -139,4 +201,32 @@ public class AgentConfig {
 	public boolean isSslVerify() {
 		return sslVerify;
 	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public int getRegistryPulls() {
+		return registryPulls;
+	}
+
+	public int getHttpConnections() {
+		return httpConnections;
+	}
+
+	public int getHttpConnectTimeout() {
+		return httpConnectTimeout;
+	}
+
+	public int getHttpReadTimeout() {
+		return httpReadTimeout;
+	}
+
+	public boolean isHttpGzip() {
+		return httpGzip;
+	}
+
+	public int getRetryBudget() {
+		return retryBudget;
+	}
 }
@@ -19,6 +19,9 @@
 
 package com.adenops.moustack.agent.config;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import com.adenops.moustack.agent.DeploymentException;
@@ -31,6 +34,9 @@ public class StackConfig {
 	private String dockerRegistry;
 	private String dockerMoustackTag;
 
+	// immutable copy of the properties used for rendering, rebuilt after any modification
+	private volatile Map<String, String> propertiesSnapshot;
+
 	public StackConfig() {
 	}
 
@@ -50,6 +56,7 @@ public class StackConfig {
 	 */
 	public void set(StackProperty variable, String value) {
 		properties.setProperty(variable.getName(), value);
+		propertiesSnapshot = null;
 	}
 
 	public Properties getProperties() {
@@ -58,6 +65,19 @@ public class StackConfig {
 
 	public void setProperties(Properties properties) {
 		this.properties = properties;
+		this.propertiesSnapshot = null;
+	}
+
+	public Map<String, String> getPropertiesSnapshot() {
+		Map<String, String> snapshot = propertiesSnapshot;
+		if (snapshot == null) {
+			Map<String, String> copy = new HashMap<>();
+			for (String key : properties.stringPropertyNames())
+				copy.put(key, properties.getProperty(key));
+			snapshot = Collections.unmodifiableMap(copy);
+			propertiesSnapshot = snapshot;
+		}
+		return snapshot;
 	}
 
 	public String getGitRepo() {
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.model.deployment;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.adenops.moustack.agent.DeploymentException;
+
+/**
+ * A template compiled into literal segments and variable references (@{variable}).
+ *
+ * Instances are immutable and can be shared between threads and runs.
+ *
+ */
+public class Template {
+	private static final String TOKEN_START = "@{";
+	private static final char TOKEN_END = '}';
+
+	private final String digest;
+
+	// literals.length == variables.length + 1, variables are between literals
+	private final String[] literals;
+	private final String[] variables;
+	private final Set<String> variableSet;
+
+	private Template(String digest, List<String> literals, List<String> variables) {
+		this.digest = digest;
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.variables = variables.toArray(new String[variables.size()]);
+		this.variableSet = Collections.unmodifiableSet(new LinkedHashSet<>(variables));
+	}
+
+	/**
+	 * Parse the template content, a token is "@{" followed by at least one character other than "}" and by "}".
+	 */
+	public static Template compile(String content, String digest) {
+		List<String> literals = new ArrayList<>();
+		List<String> variables = new ArrayList<>();
+
+		int literalStart = 0;
+		int searchFrom = 0;
+		while (true) {
+			int start = content.indexOf(TOKEN_START, searchFrom);
+			if (start < 0)
+				break;
+			int end = content.indexOf(TOKEN_END, start + TOKEN_START.length());
+			if (end < 0)
+				break;
+			if (end == start + TOKEN_START.length()) {
+				// empty variable name, not a token
+				searchFrom = start + 1;
+				continue;
+			}
+			literals.add(content.substring(literalStart, start));
+			variables.add(content.substring(start + TOKEN_START.length(), end));
+			literalStart = end + 1;
+			searchFrom = literalStart;
+		}
+		literals.add(content.substring(literalStart));
+
+		return new Template(digest, literals, variables);
+	}
+
+	/**
+	 * Stream the rendered template, nothing is written if a variable cannot be resolved.
+	 *
+	 * @param errorOnMissing
+	 *            if false, unknown variables are replaced by an empty string
+	 */
+	public void render(Map<String, String> properties, boolean errorOnMissing, Writer writer)
+			throws DeploymentException, IOException {
+		String[] values = resolve(properties, errorOnMissing);
+		for (int i = 0; i < values.length; i++) {
+			writer.write(literals[i]);
+			writer.write(values[i]);
+		}
+		writer.write(literals[values.length]);
+	}
+
+	private String[] resolve(Map<String, String> properties, boolean errorOnMissing) throws DeploymentException {
+		String[] values = new String[variables.length];
+		for (int i = 0; i < variables.length; i++) {
+			String value = properties.get(variables[i]);
+			if (value == null) {
+				if (errorOnMissing)
+					throw new DeploymentException("unknown variable " + variables[i]);
+				value = "";
+			}
+			values[i] = value;
+		}
+		return values;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public Set<String> getVariables() {
+		return variableSet;
+	}
+}
@@ -25,6 +25,8 @@ public class ExecResult {
 	private int exitCode = -1;
 	private String command;
 	private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+	private long duration;
 
 	public int getExitCode() {
 		return exitCode;
@@ -38,6 +40,21 @@ public class ExecResult {
 		return stdout;
 	}
 
+	public ByteArrayOutputStream getStderr() {
+		return stderr;
+	}
+
+	/**
+	 * @return the execution wall time in milliseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+
 	public String getCommand() {
 		return command;
 	}
@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.model.openstack.keystone;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.config.StackConfig;
+import com.adenops.moustack.agent.config.StackProperty;
+
+/**
+ * Keystone entities a module needs (desired state), reconciled with the live Keystone state for the whole deployment
+ * plan at once.
+ */
+public class Catalog {
+	private final StackConfig stack;
+	private final Map<String, String> domains = new LinkedHashMap<>();
+	private final Map<String, String> projects = new LinkedHashMap<>();
+	private final Set<String> roles = new LinkedHashSet<>();
+	private final Map<String, ServiceEntry> services = new LinkedHashMap<>();
+	private final Map<String, UserEntry> users = new LinkedHashMap<>();
+	private final Map<String, GrantEntry> grants = new LinkedHashMap<>();
+
+	public static class ServiceEntry {
+		private final String name;
+		private final String description;
+		private final String type;
+		private final String publicURL;
+		private final String internalURL;
+		private final String adminURL;
+
+		private ServiceEntry(String name, String description, String type, String publicURL, String internalURL,
+				String adminURL) {
+			this.name = name;
+			this.description = description;
+			this.type = type;
+			this.publicURL = publicURL;
+			this.internalURL = internalURL;
+			this.adminURL = adminURL;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getPublicURL() {
+			return publicURL;
+		}
+
+		public String getInternalURL() {
+			return internalURL;
+		}
+
+		public String getAdminURL() {
+			return adminURL;
+		}
+	}
+
+	public static class UserEntry {
+		private final String name;
+		private final String description;
+		private final String email;
+		private final String password;
+		private final String project;
+		private final String domain;
+
+		private UserEntry(String name, String description, String email, String password, String project,
+				String domain) {
+			this.name = name;
+			this.description = description;
+			this.email = email;
+			this.password = password;
+			this.project = project;
+			this.domain = domain;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public String getEmail() {
+			return email;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		public String getProject() {
+			return project;
+		}
+
+		public String getDomain() {
+			return domain;
+		}
+	}
+
+	public static class GrantEntry {
+		private final String user;
+		private final String project;
+		private final String domain;
+		private final String role;
+
+		private GrantEntry(String user, String project, String domain, String role) {
+			this.user = user;
+			this.project = project;
+			this.domain = domain;
+			this.role = role;
+		}
+
+		public String getUser() {
+			return user;
+		}
+
+		public String getProject() {
+			return project;
+		}
+
+		public String getDomain() {
+			return domain;
+		}
+
+		public String getRole() {
+			return role;
+		}
+
+		public String getKey() {
+			return project != null ? "project:" + project + ":" + user + ":" + role
+					: "domain:" + domain + ":" + user + ":" + role;
+		}
+	}
+
+	public Catalog(StackConfig stack) {
+		this.stack = stack;
+	}
+
+	public void addDomain(String name, String description) {
+		domains.put(name, description);
+	}
+
+	public void addProject(String name, String description) {
+		projects.put(name, description);
+	}
+
+	public void addRole(String name) {
+		roles.add(name);
+	}
+
+	public void addService(String name, String description, String type, String publicURL, String internalURL,
+			String adminURL) {
+		services.put(name, new ServiceEntry(name, description, type, publicURL, internalURL, adminURL));
+	}
+
+	public void addProjectUser(StackProperty userKey, String description, String email, StackProperty passwordKey,
+			StackProperty projectKey) throws DeploymentException {
+		String name = stack.get(userKey);
+		users.put(name, new UserEntry(name, description, email, stack.get(passwordKey), stack.get(projectKey), null));
+	}
+
+	public void addDomainUser(StackProperty userKey, String description, String email, StackProperty passwordKey,
+			StackProperty domainKey) throws DeploymentException {
+		String name = stack.get(userKey);
+		users.put(name, new UserEntry(name, description, email, stack.get(passwordKey), null, stack.get(domainKey)));
+	}
+
+	public void grantProjectRole(StackProperty userKey, StackProperty projectKey, StackProperty roleKey)
+			throws DeploymentException {
+		GrantEntry grant = new GrantEntry(stack.get(userKey), stack.get(projectKey), null, stack.get(roleKey));
+		grants.put(grant.getKey(), grant);
+	}
+
+	public void grantDomainRole(StackProperty userKey, StackProperty domainKey, StackProperty roleKey)
+			throws DeploymentException {
+		GrantEntry grant = new GrantEntry(stack.get(userKey), null, stack.get(domainKey), stack.get(roleKey));
+		grants.put(grant.getKey(), grant);
+	}
+
+	public boolean isEmpty() {
+		return domains.isEmpty() && projects.isEmpty() && roles.isEmpty() && services.isEmpty() && users.isEmpty()
+				&& grants.isEmpty();
+	}
+
+	public Map<String, String> getDomains() {
+		return domains;
+	}
+
+	public Map<String, String> getProjects() {
+		return projects;
+	}
+
+	public Set<String> getRoles() {
+		return roles;
+	}
+
+	public Collection<ServiceEntry> getServices() {
+		return services.values();
+	}
+
+	public Collection<UserEntry> getUsers() {
+		return users.values();
+	}
+
+	public Collection<GrantEntry> getGrants() {
+		return grants.values();
+	}
+}
@@ -22,5 +22,13 @@ package com.adenops.moustack.agent.model.openstack.keystone;
 import com.adenops.moustack.agent.model.openstack.OSEntity;
 
 public class Token extends OSEntity {
+	private String expires_at;
 
+	public String getExpires_at() {
+		return expires_at;
+	}
+
+	public void setExpires_at(String expires_at) {
+		this.expires_at = expires_at;
+	}
 }
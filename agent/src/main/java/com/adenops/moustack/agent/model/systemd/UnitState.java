@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.model.systemd;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit properties as reported by "systemctl show".
+ */
+public class UnitState {
+	// states for which "systemctl is-enabled" succeeds
+	private static final Set<String> ENABLED_STATES = new HashSet<>(
+			Arrays.asList("enabled", "enabled-runtime", "static", "indirect", "generated", "transient", "alias"));
+
+	// states for which "systemctl is-active" succeeds
+	private static final Set<String> ACTIVE_STATES = new HashSet<>(Arrays.asList("active", "reloading"));
+
+	private final String unit;
+	private final String activeState;
+	private final String unitFileState;
+	private final boolean needDaemonReload;
+	private final String fragmentPath;
+
+	// daemon-reload generation this state has been read in
+	private final long generation;
+
+	public UnitState(String unit, Map<String, String> properties, long generation) {
+		this.unit = unit;
+		this.activeState = properties.get("ActiveState");
+		this.unitFileState = properties.get("UnitFileState");
+		this.needDaemonReload = "yes".equals(properties.get("NeedDaemonReload"));
+		this.fragmentPath = properties.get("FragmentPath");
+		this.generation = generation;
+	}
+
+	public boolean isActive() {
+		return ACTIVE_STATES.contains(activeState);
+	}
+
+	public boolean isEnabled() {
+		return ENABLED_STATES.contains(unitFileState);
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public String getActiveState() {
+		return activeState;
+	}
+
+	public String getUnitFileState() {
+		return unitFileState;
+	}
+
+	public boolean isNeedDaemonReload() {
+		return needDaemonReload;
+	}
+
+	public String getFragmentPath() {
+		return fragmentPath;
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+}
@@ -19,12 +19,30 @@
 
 package com.adenops.moustack.agent.module;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.config.StackProperty;
+import com.adenops.moustack.agent.model.deployment.DeploymentFile;
+import com.adenops.moustack.agent.util.DeploymentUtil;
 
 public abstract class BaseModule {
+	private static final Logger log = LoggerFactory.getLogger(BaseModule.class);
+
 	protected final String name;
 
+	// modules which must be deployed before this one (null if not declared)
+	private List<String> dependencies;
+
 	public BaseModule(String name) {
 		this.name = name;
 	}
@@ -37,7 +55,67 @@ public abstract class BaseModule {
 
 	public abstract String getType();
 
+	public abstract List<DeploymentFile> getFiles();
+
+	/**
+	 * Digest of everything the module converges, used to skip the module when nothing changed since the last
+	 * successful run.
+	 *
+	 * @return the fingerprint or null if the module state cannot be captured
+	 */
+	public String getFingerprint(DeploymentEnvironment env) throws DeploymentException {
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		if (!fingerprint(env, digest))
+			return null;
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	protected boolean fingerprint(DeploymentEnvironment env, MessageDigest digest) throws DeploymentException {
+		update(digest, getClass().getName(), name);
+
+		// registered modules use stack properties directly
+		for (StackProperty property : StackProperty.values())
+			update(digest, property.getName(), env.getStack().get(property));
+
+		for (DeploymentFile file : getFiles()) {
+			if (file.isParse())
+				update(digest, file.getTarget(), DeploymentUtil.renderedMd5(env.getStack(), file));
+			else
+				update(digest, file.getTarget(), DeploymentUtil.md5(file.getSource()));
+		}
+		return true;
+	}
+
+	protected static void update(MessageDigest digest, Object... values) {
+		for (Object value : values) {
+			digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+			// separator, so ("ab", "c") and ("a", "bc") differ
+			digest.update((byte) 0);
+		}
+	}
+
+	/**
+	 * Cheap check used for the modules untouched since the last successful run, if it fails the module is deployed.
+	 */
+	public boolean isAlive(DeploymentEnvironment env) throws DeploymentException {
+		for (DeploymentFile file : getFiles()) {
+			if (!new File(file.getTarget()).exists()) {
+				log.info("module [{}] file {} is missing", name, file.getTarget());
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public String getName() {
 		return name;
 	}
+
+	public List<String> getDependencies() {
+		return dependencies;
+	}
+
+	public void setDependencies(List<String> dependencies) {
+		this.dependencies = dependencies;
+	}
 }
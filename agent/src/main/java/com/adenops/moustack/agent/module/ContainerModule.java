@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module;
 
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.List;
 
@@ -28,8 +29,12 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.DockerLocalClient;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.util.DeploymentUtil;
 
 public class ContainerModule extends BaseModule {
@@ -91,8 +96,60 @@ public class ContainerModule extends BaseModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		log.debug("validating container " + name);
-		if (!env.getDockerClient().containerIsRunning(this))
-			throw new DeploymentException("container " + name + " is not running");
+		env.getDockerClient().awaitReady(this);
+	}
+
+	/*
+	 * Validate the container API endpoint in the background, giving up as soon as the container dies. The deployer
+	 * waits for it before deploying the modules depending on this one.
+	 */
+	protected void validateEndpoint(DeploymentEnvironment env, String service, String url, int expectedStatus)
+			throws DeploymentException {
+		DockerLocalClient dockerClient = env.getDockerClient();
+		env.getValidationClient().register(name, env.getStack(), service, url, expectedStatus,
+				() -> dockerClient.checkAlive(this));
+	}
+
+	@Override
+	protected boolean fingerprint(DeploymentEnvironment env, MessageDigest digest) throws DeploymentException {
+		// latest images are pulled on every run, we cannot know if they changed
+		if ("latest".equals(imageTag))
+			return false;
+
+		String imageId = env.getDockerClient().getImageId(getImageFullName());
+		if (imageId == null)
+			return false;
+
+		if (!super.fingerprint(env, digest))
+			return false;
+		update(digest, getImageFullName(), imageId, environments, Volume.asStringList(volumes), capabilities,
+				privileged, devices, syslog);
+		return true;
+	}
+
+	/**
+	 * Keystone entities required by this module, reconciled for the whole plan with the first module requesting it.
+	 */
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		return new Catalog(stack);
+	}
+
+	/**
+	 * MySQL databases required by this module, provisioned for the whole plan with the first module requesting it.
+	 */
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public boolean isAlive(DeploymentEnvironment env) throws DeploymentException {
+		if (!super.isAlive(env))
+			return false;
+		if (!env.getDockerClient().containerIsRunning(this)) {
+			log.info("container {} is not running", name);
+			return false;
+		}
+		return true;
 	}
 
 	public String getImageName() {
@@ -145,6 +202,7 @@ public class ContainerModule extends BaseModule {
 		return environments;
 	}
 
+	@Override
 	public List<DeploymentFile> getFiles() {
 		return files;
 	}
@@ -19,6 +19,8 @@
 
 package com.adenops.moustack.agent.module;
 
+import java.security.MessageDigest;
+import java.util.Collections;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -72,10 +74,32 @@ public class SystemModule extends BaseModule {
 		}
 	}
 
+	@Override
+	protected boolean fingerprint(DeploymentEnvironment env, MessageDigest digest) throws DeploymentException {
+		if (!super.fingerprint(env, digest))
+			return false;
+		update(digest, packages, services);
+		return true;
+	}
+
+	@Override
+	public boolean isAlive(DeploymentEnvironment env) throws DeploymentException {
+		if (!super.isAlive(env))
+			return false;
+		for (String service : services) {
+			if (!SystemCtlUtil.unitIsActive(service)) {
+				log.info("service {} is not running", service);
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public List<String> getPackages() {
 		return packages;
 	}
 
+	@Override
 	public List<DeploymentFile> getFiles() {
 		return files;
 	}
@@ -84,6 +108,27 @@ public class SystemModule extends BaseModule {
 		return services;
 	}
 
+	/**
+	 * Packages installed by this module, installed ahead of the deployment in a single transaction.
+	 */
+	public List<String> getPlannedPackages() {
+		return packages;
+	}
+
+	/**
+	 * Packages removed by this module, removed ahead of the deployment in a single transaction.
+	 */
+	public List<String> getPlannedRemovals() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Units managed by this module, queried in batch at the beginning of a run.
+	 */
+	public List<String> getUnits() {
+		return services;
+	}
+
 	@Override
 	public String getType() {
 		return "system";
@@ -23,9 +23,11 @@ import java.util.List;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Ceilometer extends ContainerModule {
@@ -36,16 +38,22 @@ public class Ceilometer extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addService("ceilometer", "OpenStack Telemetry service", "metering", "http://%s:8777", "http://%s:8777",
+				"http://%s:8777");
+		catalog.addProjectUser(StackProperty.KS_CEILOMETER_USER, "Ceilometer user", "ceilometer@localhost",
+				StackProperty.KS_CEILOMETER_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_CEILOMETER_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		return catalog;
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getKeystoneClient().createService(env.getStack(), "ceilometer", "OpenStack Telemetry service",
-				"metering", "http://%s:8777", "http://%s:8777", "http://%s:8777");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_CEILOMETER_USER,
-				"Ceilometer user", "ceilometer@localhost", StackProperty.KS_CEILOMETER_PASSWORD,
-				StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_CEILOMETER_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
+		changed |= env.getKeystoneReconciler().reconcile(this);
 
 		env.getMongoClient().createDatabaseUser(env.getStack().get(StackProperty.DB_CEILOMETER_DATABASE),
 				env.getStack().get(StackProperty.DB_CEILOMETER_USER),
@@ -60,6 +68,6 @@ public class Ceilometer extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "ceilometer", "http://%s:8777", 401);
+		validateEndpoint(env, "ceilometer", "http://%s:8777", 401);
 	}
 }
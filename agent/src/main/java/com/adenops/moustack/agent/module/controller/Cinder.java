@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module.controller;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -26,9 +27,13 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.BootstrapRunner;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Cinder extends ContainerModule {
@@ -41,30 +46,42 @@ public class Cinder extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addService("cinder", "OpenStack OpenStack Block Storage service", "volume",
+				"http://%s:8776/v1/%%(tenant_id)s", "http://%s:8776/v1/%%(tenant_id)s",
+				"http://%s:8776/v1/%%(tenant_id)s");
+		catalog.addService("cinderv2", "OpenStack OpenStack Block Storage service", "volumev2",
+				"http://%s:8776/v2/%%(tenant_id)s", "http://%s:8776/v2/%%(tenant_id)s",
+				"http://%s:8776/v2/%%(tenant_id)s");
+		catalog.addProjectUser(StackProperty.KS_CINDER_USER, "Cinder user", "cinder@localhost",
+				StackProperty.KS_CINDER_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_CINDER_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		return catalog;
+	}
+
+	@Override
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		return Arrays.asList(new Database("cinder", "cinder", stack.get(StackProperty.DB_CINDER_PASSWORD)));
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getKeystoneClient().createService(env.getStack(), "cinder",
-				"OpenStack OpenStack Block Storage service", "volume", "http://%s:8776/v1/%%(tenant_id)s",
-				"http://%s:8776/v1/%%(tenant_id)s", "http://%s:8776/v1/%%(tenant_id)s");
-		changed |= env.getKeystoneClient().createService(env.getStack(), "cinderv2",
-				"OpenStack OpenStack Block Storage service", "volumev2", "http://%s:8776/v2/%%(tenant_id)s",
-				"http://%s:8776/v2/%%(tenant_id)s", "http://%s:8776/v2/%%(tenant_id)s");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_CINDER_USER,
-				"Cinder user", "cinder@localhost", StackProperty.KS_CINDER_PASSWORD,
-				StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_CINDER_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
+		changed |= env.getKeystoneReconciler().reconcile(this);
 
-		changed |= env.getMySQLClient().createDatabaseUser("cinder", "cinder",
-				env.getStack().get(StackProperty.DB_CINDER_PASSWORD));
+		changed |= env.getMySQLClient().provision(this);
 
 		changed |= deployConfig(env);
 
 		if (changed) {
 			env.getDockerClient().discardContainer(this);
 			log.info("running cinder DB migration");
-			env.getDockerClient().startEphemeralContainer(this, "cinder", "cinder-manage", "db sync");
+			try (BootstrapRunner bootstrap = env.getDockerClient().startBootstrap(this)) {
+				bootstrap.run("cinder", "cinder-manage", "db sync");
+			}
 		}
 
 		env.getDockerClient().startContainer(changed, this);
@@ -75,6 +92,6 @@ public class Cinder extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "cinder", "http://%s:8776/", 300);
+		validateEndpoint(env, "cinder", "http://%s:8776/", 300);
 	}
 }
@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module.controller;
 
+import java.util.Arrays;
 import java.util.List;
 
 import javax.ws.rs.core.Response.Status;
@@ -28,9 +29,13 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.BootstrapRunner;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Designate extends ContainerModule {
@@ -43,32 +48,42 @@ public class Designate extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addService("designate", "OpenStack DNS service", "dns", "http://%s:9001", "http://%s:9001",
+				"http://%s:9001");
+		catalog.addProjectUser(StackProperty.KS_DESIGNATE_USER, "Designate user", "designate@localhost",
+				StackProperty.KS_DESIGNATE_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_DESIGNATE_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		return catalog;
+	}
+
+	@Override
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		String password = stack.get(StackProperty.DB_DESIGNATE_PASSWORD);
+		return Arrays.asList(new Database("designate", "designate", password),
+				new Database("designate_pool_manager", "designate", password));
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getKeystoneClient().createService(env.getStack(), "designate", "OpenStack DNS service", "dns",
-				"http://%s:9001", "http://%s:9001", "http://%s:9001");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_DESIGNATE_USER,
-				"Designate user", "designate@localhost", StackProperty.KS_DESIGNATE_PASSWORD,
-				StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_DESIGNATE_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
-
-		changed |= env.getMySQLClient().createDatabaseUser("designate", "designate",
-				env.getStack().get(StackProperty.DB_DESIGNATE_PASSWORD));
+		changed |= env.getKeystoneReconciler().reconcile(this);
 
-		changed |= env.getMySQLClient().createDatabaseUser("designate_pool_manager", "designate",
-				env.getStack().get(StackProperty.DB_DESIGNATE_PASSWORD));
+		changed |= env.getMySQLClient().provision(this);
 
 		changed |= deployConfig(env);
 
 		if (changed) {
 			env.getDockerClient().discardContainer(this);
-			log.info("running designate DB migration");
-			env.getDockerClient().startEphemeralContainer(this, "designate", "designate-manage", "database", "sync");
-			log.info("running designate pool manager DB migration");
-			env.getDockerClient().startEphemeralContainer(this, "designate", "designate-manage", "pool-manager-cache",
-					"sync");
+			try (BootstrapRunner bootstrap = env.getDockerClient().startBootstrap(this)) {
+				log.info("running designate DB migration");
+				bootstrap.run("designate", "designate-manage", "database", "sync");
+				log.info("running designate pool manager DB migration");
+				bootstrap.run("designate", "designate-manage", "pool-manager-cache", "sync");
+			}
 		}
 
 		env.getDockerClient().startContainer(changed, this);
@@ -79,7 +94,7 @@ public class Designate extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "designate", "http://%s:9001",
+		validateEndpoint(env, "designate", "http://%s:9001",
 				Status.OK.getStatusCode());
 	}
 }
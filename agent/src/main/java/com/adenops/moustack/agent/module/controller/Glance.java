@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module.controller;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -26,9 +27,13 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.BootstrapRunner;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Glance extends ContainerModule {
@@ -41,26 +46,38 @@ public class Glance extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addService("glance", "OpenStack Image service", "image", "http://%s:9292/", "http://%s:9292/",
+				"http://%s:9292/");
+		catalog.addProjectUser(StackProperty.KS_GLANCE_USER, "Glance user", "glance@localhost",
+				StackProperty.KS_GLANCE_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_GLANCE_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		return catalog;
+	}
+
+	@Override
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		return Arrays.asList(new Database("glance", "glance", stack.get(StackProperty.DB_GLANCE_PASSWORD)));
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getKeystoneClient().createService(env.getStack(), "glance", "OpenStack Image service", "image",
-				"http://%s:9292/", "http://%s:9292/", "http://%s:9292/");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_GLANCE_USER,
-				"Glance user", "glance@localhost", StackProperty.KS_GLANCE_PASSWORD,
-				StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_GLANCE_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
+		changed |= env.getKeystoneReconciler().reconcile(this);
 
-		changed |= env.getMySQLClient().createDatabaseUser("glance", "glance",
-				env.getStack().get(StackProperty.DB_GLANCE_PASSWORD));
+		changed |= env.getMySQLClient().provision(this);
 
 		changed |= deployConfig(env);
 
 		if (changed) {
 			env.getDockerClient().discardContainer(this);
 			log.info("running glance DB migration");
-			env.getDockerClient().startEphemeralContainer(this, "glance", "glance-manage", "db_sync");
+			try (BootstrapRunner bootstrap = env.getDockerClient().startBootstrap(this)) {
+				bootstrap.run("glance", "glance-manage", "db_sync");
+			}
 		}
 
 		env.getDockerClient().startContainer(changed, this);
@@ -71,6 +88,6 @@ public class Glance extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "glance", "http://%s:9292/", 300);
+		validateEndpoint(env, "glance", "http://%s:9292/", 300);
 	}
 }
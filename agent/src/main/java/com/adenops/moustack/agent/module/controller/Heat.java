@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module.controller;
 
+import java.util.Arrays;
 import java.util.List;
 
 import javax.ws.rs.core.Response.Status;
@@ -28,9 +29,13 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.BootstrapRunner;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Heat extends ContainerModule {
@@ -43,43 +48,51 @@ public class Heat extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addService("heat", "OpenStack Orchestration service", "orchestration",
+				"http://%s:8004/v1/%%(tenant_id)s", "http://%s:8004/v1/%%(tenant_id)s",
+				"http://%s:8004/v1/%%(tenant_id)s");
+		catalog.addService("heat-cfn", "OpenStack Orchestration service", "cloudformation", "http://%s:8774/v2/8000/v1",
+				"http://%s:8774/v2/8000/v1", "http://%s:8774/v2/8000/v1");
+		catalog.addProjectUser(StackProperty.KS_HEAT_USER, "Heat user", "heat@localhost",
+				StackProperty.KS_HEAT_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_HEAT_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+
+		catalog.addRole(stack.get(StackProperty.HEAT_DELEGATED_ROLE));
+		catalog.addRole(stack.get(StackProperty.HEAT_STACK_USER_ROLE));
+		catalog.addDomain(stack.get(StackProperty.HEAT_DOMAIN), "Stack projects and users");
+		catalog.addDomainUser(StackProperty.HEAT_DOMAIN_ADMIN, "Heat domain admin", "heat@localhost",
+				StackProperty.HEAT_DOMAIN_ADMIN_PASSWORD, StackProperty.HEAT_DOMAIN);
+		catalog.grantDomainRole(StackProperty.HEAT_DOMAIN_ADMIN, StackProperty.HEAT_DOMAIN,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		catalog.grantProjectRole(StackProperty.KEYSTONE_ADMIN_USER, StackProperty.KEYSTONE_ADMIN_PROJECT,
+				StackProperty.HEAT_DELEGATED_ROLE);
+		return catalog;
+	}
+
+	@Override
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		return Arrays.asList(new Database("heat", "heat", stack.get(StackProperty.DB_HEAT_PASSWORD)));
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getKeystoneClient().createService(env.getStack(), "heat", "OpenStack Orchestration service",
-				"orchestration", "http://%s:8004/v1/%%(tenant_id)s", "http://%s:8004/v1/%%(tenant_id)s",
-				"http://%s:8004/v1/%%(tenant_id)s");
-		changed |= env.getKeystoneClient().createService(env.getStack(), "heat-cfn", "OpenStack Orchestration service",
-				"cloudformation", "http://%s:8774/v2/8000/v1", "http://%s:8774/v2/8000/v1",
-				"http://%s:8774/v2/8000/v1");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_HEAT_USER, "Heat user",
-				"heat@localhost", StackProperty.KS_HEAT_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_HEAT_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
-
-		changed |= env.getKeystoneClient().createRole(env.getStack(),
-				env.getStack().get(StackProperty.HEAT_DELEGATED_ROLE));
-		changed |= env.getKeystoneClient().createRole(env.getStack(),
-				env.getStack().get(StackProperty.HEAT_STACK_USER_ROLE));
-		changed |= env.getKeystoneClient().createDomain(env.getStack(), env.getStack().get(StackProperty.HEAT_DOMAIN),
-				"Stack projects and users");
-		changed |= env.getKeystoneClient().createDomainUser(env.getStack(), StackProperty.HEAT_DOMAIN_ADMIN,
-				"Heat domain admin", "heat@localhost", StackProperty.HEAT_DOMAIN_ADMIN_PASSWORD,
-				StackProperty.HEAT_DOMAIN);
-		changed |= env.getKeystoneClient().grantDomainRole(env.getStack(), StackProperty.HEAT_DOMAIN_ADMIN,
-				StackProperty.HEAT_DOMAIN, StackProperty.KEYSTONE_ADMIN_ROLE);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KEYSTONE_ADMIN_USER,
-				StackProperty.KEYSTONE_ADMIN_PROJECT, StackProperty.HEAT_DELEGATED_ROLE);
-
-		changed |= env.getMySQLClient().createDatabaseUser("heat", "heat",
-				env.getStack().get(StackProperty.DB_HEAT_PASSWORD));
+		changed |= env.getKeystoneReconciler().reconcile(this);
+
+		changed |= env.getMySQLClient().provision(this);
 
 		changed |= deployConfig(env);
 
 		if (changed) {
 			env.getDockerClient().discardContainer(this);
 			log.info("running glance DB migration");
-			env.getDockerClient().startEphemeralContainer(this, "heat", "heat-manage", "db_sync");
+			try (BootstrapRunner bootstrap = env.getDockerClient().startBootstrap(this)) {
+				bootstrap.run("heat", "heat-manage", "db_sync");
+			}
 		}
 
 		env.getDockerClient().startContainer(changed, this);
@@ -90,7 +103,7 @@ public class Heat extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "heat", "http://%s:8774/",
+		validateEndpoint(env, "heat", "http://%s:8774/",
 				Status.OK.getStatusCode());
 	}
 }
@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module.controller;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -26,9 +27,13 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.BootstrapRunner;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Keystone extends ContainerModule {
@@ -41,31 +46,44 @@ public class Keystone extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addProject("admin", "Admin project");
+		catalog.addProject("services", "Services project");
+		catalog.addRole("admin");
+		catalog.addRole("_member_");
+		catalog.addProjectUser(StackProperty.KEYSTONE_ADMIN_USER, "Admin user", "admin@localhost",
+				StackProperty.KEYSTONE_ADMIN_PASSWORD, StackProperty.KEYSTONE_ADMIN_PROJECT);
+		catalog.grantProjectRole(StackProperty.KEYSTONE_ADMIN_USER, StackProperty.KEYSTONE_ADMIN_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		catalog.addService("keystone", "OpenStack Identity", "identity", "http://%s:5000/v3", "http://%s:5000/v3",
+				"http://%s:35357/v3");
+		return catalog;
+	}
+
+	@Override
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		return Arrays.asList(new Database("keystone", "keystone", stack.get(StackProperty.DB_KEYSTONE_PASSWORD)));
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getMySQLClient().createDatabaseUser("keystone", "keystone",
-				env.getStack().get(StackProperty.DB_KEYSTONE_PASSWORD));
+		changed |= env.getMySQLClient().provision(this);
 		changed |= deployConfig(env);
 
 		if (changed) {
 			env.getDockerClient().discardContainer(this);
 			log.info("running keystone bootstrap");
-			env.getDockerClient().startEphemeralContainer(this, "root", "bootstrap-image");
+			try (BootstrapRunner bootstrap = env.getDockerClient().startBootstrap(this)) {
+				bootstrap.run("root", "bootstrap-image");
+			}
 		}
 
 		env.getDockerClient().startContainer(changed, this);
 
-		env.getKeystoneClient().createProject(env.getStack(), "admin", "Admin project");
-		env.getKeystoneClient().createProject(env.getStack(), "services", "Services project");
-		env.getKeystoneClient().createRole(env.getStack(), "admin");
-		env.getKeystoneClient().createRole(env.getStack(), "_member_");
-		env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KEYSTONE_ADMIN_USER, "Admin user",
-				"admin@localhost", StackProperty.KEYSTONE_ADMIN_PASSWORD, StackProperty.KEYSTONE_ADMIN_PROJECT);
-		env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KEYSTONE_ADMIN_USER,
-				StackProperty.KEYSTONE_ADMIN_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
-		env.getKeystoneClient().createService(env.getStack(), "keystone", "OpenStack Identity", "identity",
-				"http://%s:5000/v3", "http://%s:5000/v3", "http://%s:35357/v3");
+		env.getKeystoneReconciler().reconcile(this);
 
 		return changed;
 	}
@@ -73,6 +91,6 @@ public class Keystone extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "keystone", "http://%s:5000/", 300);
+		validateEndpoint(env, "keystone", "http://%s:5000/", 300);
 	}
 }
@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module.controller;
 
+import java.util.Arrays;
 import java.util.List;
 
 import javax.ws.rs.core.Response.Status;
@@ -28,9 +29,13 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.BootstrapRunner;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Neutron extends ContainerModule {
@@ -43,28 +48,39 @@ public class Neutron extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addService("neutron", "OpenStack Networking service", "network", "http://%s:9696", "http://%s:9696",
+				"http://%s:9696");
+		catalog.addProjectUser(StackProperty.KS_NEUTRON_USER, "Neutron user", "neutron@localhost",
+				StackProperty.KS_NEUTRON_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_NEUTRON_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		return catalog;
+	}
+
+	@Override
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		return Arrays.asList(new Database("neutron", "neutron", stack.get(StackProperty.DB_NEUTRON_PASSWORD)));
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getKeystoneClient().createService(env.getStack(), "neutron", "OpenStack Networking service",
-				"network", "http://%s:9696", "http://%s:9696", "http://%s:9696");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_NEUTRON_USER,
-				"Neutron user", "neutron@localhost", StackProperty.KS_NEUTRON_PASSWORD,
-				StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_NEUTRON_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
+		changed |= env.getKeystoneReconciler().reconcile(this);
 
-		changed |= env.getMySQLClient().createDatabaseUser("neutron", "neutron",
-				env.getStack().get(StackProperty.DB_NEUTRON_PASSWORD));
+		changed |= env.getMySQLClient().provision(this);
 
 		changed |= deployConfig(env);
 
 		if (changed) {
 			env.getDockerClient().discardContainer(this);
 			log.info("running neutron DB migration");
-			env.getDockerClient().startEphemeralContainer(this, "neutron", "neutron-db-manage", "--config-file",
-					"/etc/neutron/neutron.conf", "--config-file", "/etc/neutron/plugins/ml2/ml2_conf.ini", "upgrade",
-					"head");
+			try (BootstrapRunner bootstrap = env.getDockerClient().startBootstrap(this)) {
+				bootstrap.run("neutron", "neutron-db-manage", "--config-file", "/etc/neutron/neutron.conf",
+						"--config-file", "/etc/neutron/plugins/ml2/ml2_conf.ini", "upgrade", "head");
+			}
 		}
 
 		env.getDockerClient().startContainer(changed, this);
@@ -75,7 +91,7 @@ public class Neutron extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "neutron", "http://%s:9696/",
+		validateEndpoint(env, "neutron", "http://%s:9696/",
 				Status.OK.getStatusCode());
 	}
 }
@@ -19,6 +19,7 @@
 
 package com.adenops.moustack.agent.module.controller;
 
+import java.util.Arrays;
 import java.util.List;
 
 import javax.ws.rs.core.Response.Status;
@@ -28,9 +29,13 @@ import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.client.BootstrapRunner;
+import com.adenops.moustack.agent.client.MySQLClient.Database;
+import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.config.StackProperty;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
 import com.adenops.moustack.agent.model.docker.Volume;
+import com.adenops.moustack.agent.model.openstack.keystone.Catalog;
 import com.adenops.moustack.agent.module.ContainerModule;
 
 public class Nova extends ContainerModule {
@@ -43,38 +48,47 @@ public class Nova extends ContainerModule {
 				syslog);
 	}
 
+	@Override
+	public Catalog getCatalog(StackConfig stack) throws DeploymentException {
+		Catalog catalog = super.getCatalog(stack);
+		catalog.addService("nova", "OpenStack Compute service", "compute", "http://%s:8774/v2.1/%%(tenant_id)s",
+				"http://%s:8774/v2.1/%%(tenant_id)s", "http://%s:8774/v2.1/%%(tenant_id)s");
+		catalog.addProjectUser(StackProperty.KS_NOVA_USER, "Nova user", "nova@localhost",
+				StackProperty.KS_NOVA_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_NOVA_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+
+		catalog.addService("placement", "OpenStack Placement API", "placement", "http://%s:8778/", "http://%s:8778",
+				"http://%s:8778");
+		catalog.addProjectUser(StackProperty.KS_NOVA_PLACEMENT_USER, "Nova placement user", "nova-placement@localhost",
+				StackProperty.KS_NOVA_PLACEMENT_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
+		catalog.grantProjectRole(StackProperty.KS_NOVA_PLACEMENT_USER, StackProperty.KEYSTONE_SERVICES_PROJECT,
+				StackProperty.KEYSTONE_ADMIN_ROLE);
+		return catalog;
+	}
+
+	@Override
+	public List<Database> getDatabases(StackConfig stack) throws DeploymentException {
+		String password = stack.get(StackProperty.DB_NOVA_PASSWORD);
+		return Arrays.asList(new Database("nova", "nova", password), new Database("nova_api", "nova", password),
+				new Database("nova_cell0", "nova", password));
+	}
+
 	@Override
 	public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
 		boolean changed = false;
-		changed |= env.getKeystoneClient().createService(env.getStack(), "nova", "OpenStack Compute service", "compute",
-				"http://%s:8774/v2.1/%%(tenant_id)s", "http://%s:8774/v2.1/%%(tenant_id)s",
-				"http://%s:8774/v2.1/%%(tenant_id)s");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_NOVA_USER, "Nova user",
-				"nova@localhost", StackProperty.KS_NOVA_PASSWORD, StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_NOVA_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
-
-		changed |= env.getKeystoneClient().createService(env.getStack(), "placement", "OpenStack Placement API",
-				"placement", "http://%s:8778/", "http://%s:8778", "http://%s:8778");
-		changed |= env.getKeystoneClient().createProjectUser(env.getStack(), StackProperty.KS_NOVA_PLACEMENT_USER,
-				"Nova placement user", "nova-placement@localhost", StackProperty.KS_NOVA_PLACEMENT_PASSWORD,
-				StackProperty.KEYSTONE_SERVICES_PROJECT);
-		changed |= env.getKeystoneClient().grantProjectRole(env.getStack(), StackProperty.KS_NOVA_PLACEMENT_USER,
-				StackProperty.KEYSTONE_SERVICES_PROJECT, StackProperty.KEYSTONE_ADMIN_ROLE);
-
-		changed |= env.getMySQLClient().createDatabaseUser("nova", "nova",
-				env.getStack().get(StackProperty.DB_NOVA_PASSWORD));
-		changed |= env.getMySQLClient().createDatabaseUser("nova_api", "nova",
-				env.getStack().get(StackProperty.DB_NOVA_PASSWORD));
-		changed |= env.getMySQLClient().createDatabaseUser("nova_cell0", "nova",
-				env.getStack().get(StackProperty.DB_NOVA_PASSWORD));
+		changed |= env.getKeystoneReconciler().reconcile(this);
+
+		changed |= env.getMySQLClient().provision(this);
 
 		changed |= deployConfig(env);
 
 		if (changed) {
 			env.getDockerClient().discardContainer(this);
 			log.info("running nova bootstrap");
-			env.getDockerClient().startEphemeralContainer(this, "root", "bootstrap-image");
+			try (BootstrapRunner bootstrap = env.getDockerClient().startBootstrap(this)) {
+				bootstrap.run("root", "bootstrap-image");
+			}
 		}
 
 		env.getDockerClient().startContainer(changed, this);
@@ -85,7 +99,7 @@ public class Nova extends ContainerModule {
 	@Override
 	public void validate(DeploymentEnvironment env) throws DeploymentException {
 		super.validate(env);
-		env.getValidationClient().validateEndpoint(env.getStack(), "nova", "http://%s:8774/",
+		validateEndpoint(env, "nova", "http://%s:8774/",
 				Status.OK.getStatusCode());
 	}
 }
@@ -19,6 +19,8 @@
 
 package com.adenops.moustack.agent.module.misc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.adenops.moustack.agent.DeploymentEnvironment;
@@ -31,6 +33,9 @@ import com.adenops.moustack.agent.util.ProcessUtil;
 import com.adenops.moustack.agent.util.SystemCtlUtil;
 
 public class Network extends SystemModule {
+	private static final String[] REMOVED_PACKAGES = new String[] { "NetworkManager", "firewalld", "openvswitch" };
+	private static final String IPTABLES_PACKAGE = "iptables-services";
+
 	public Network(String name, List<DeploymentFile> files, List<String> packages, List<String> services) {
 		super(name, files, packages, services);
 	}
@@ -43,8 +48,10 @@ public class Network extends SystemModule {
 
 		// TODO: the logic for restart could be improved
 
-		changed |= env.getPackagingClient().remove("NetworkManager", "firewalld", "openvswitch");
-		changed |= env.getPackagingClient().install("iptables-services");
+		changed |= env.getPackagingClient().remove(REMOVED_PACKAGES);
+		changed |= env.getPackagingClient().install(IPTABLES_PACKAGE);
+		if (changed)
+			SystemCtlUtil.invalidate("NetworkManager", "network", "iptables");
 
 		changed |= DeploymentUtil.deployFiles(env.getStack(), name, files);
 
@@ -64,4 +71,25 @@ public class Network extends SystemModule {
 
 		return changed;
 	}
+
+	@Override
+	public List<String> getPlannedPackages() {
+		List<String> packages = new ArrayList<>(super.getPlannedPackages());
+		packages.add(IPTABLES_PACKAGE);
+		return packages;
+	}
+
+	@Override
+	public List<String> getPlannedRemovals() {
+		return Arrays.asList(REMOVED_PACKAGES);
+	}
+
+	@Override
+	public List<String> getUnits() {
+		List<String> units = new ArrayList<>(super.getUnits());
+		units.add("NetworkManager");
+		units.add("network");
+		units.add("iptables");
+		return units;
+	}
 }
@@ -19,10 +19,6 @@
 
 package com.adenops.moustack.agent.module.misc;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -31,7 +27,6 @@ import org.slf4j.LoggerFactory;
 import com.adenops.moustack.agent.DeploymentEnvironment;
 import com.adenops.moustack.agent.DeploymentException;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
-import com.adenops.moustack.agent.model.exec.ExecResult;
 import com.adenops.moustack.agent.module.SystemModule;
 import com.adenops.moustack.agent.util.DeploymentUtil;
 import com.adenops.moustack.agent.util.ProcessUtil;
@@ -54,20 +49,8 @@ public class Shell extends SystemModule {
 				String scriptPath = file.getTarget();
 				log.info("executing {}", scriptPath);
 
-				ExecResult result = ProcessUtil.execute("/bin/sh", scriptPath);
-
-				// TODO: this is a temporary solution to display stdout, we should be able to find a better solution and
-				// try to log live
-				BufferedReader bufferedReader = new BufferedReader(
-						new InputStreamReader(new ByteArrayInputStream(result.getStdout().toByteArray())));
-				String line;
-				try {
-					while ((line = bufferedReader.readLine()) != null) {
-						log.info(line);
-					}
-				} catch (IOException e) {
-					log.error("error while reading command stdout: " + e.getMessage());
-				}
+				// log the script output live
+				ProcessUtil.execute(null, null, null, false, log::info, "/bin/sh", scriptPath);
 			}
 			changed |= fileChanged;
 		}
@@ -19,58 +19,112 @@
 
 package com.adenops.moustack.agent.util;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentException;
 import com.adenops.moustack.agent.config.StackConfig;
 import com.adenops.moustack.agent.model.deployment.DeploymentFile;
+import com.adenops.moustack.agent.model.deployment.Template;
 
 public class DeploymentUtil {
 	private static final Logger log = LoggerFactory.getLogger(DeploymentUtil.class);
-	private static final Pattern TOKEN_PATTERN = Pattern.compile("\\@\\{([^}]+)\\}");
 	private static final boolean ERROR_ON_MISSING_VAR = true;
 
-	private static String replaceTokens(String value, Properties tokens) throws DeploymentException {
-		Matcher matcher = TOKEN_PATTERN.matcher(value);
-
-		StringBuilder builder = new StringBuilder();
-		int i = 0;
-		while (matcher.find()) {
-			String replacement = (String) tokens.get(matcher.group(1));
-			if (replacement == null) {
-				if (ERROR_ON_MISSING_VAR)
-					throw new DeploymentException("unknown variable " + matcher.group(1));
-				log.error("unknown variable " + matcher.group(1));
-				replacement = "";
-			}
+	// files are deployed concurrently within a module, modules are also deployed concurrently so keep it small
+	private static final int FILE_WORKERS = 4;
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(FILE_WORKERS, new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "files-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 
-			builder.append(value.substring(i, matcher.start()));
-			builder.append(replacement);
+	// compiled templates by source path, kept between runs and recompiled when the content changes
+	private static final Map<String, Template> TEMPLATES = new ConcurrentHashMap<>();
 
-			i = matcher.end();
+	private static Template getTemplate(String path) throws DeploymentException {
+		byte[] content;
+		try {
+			content = Files.readAllBytes(Paths.get(path));
+		} catch (IOException e) {
+			throw new DeploymentException("error while reading file " + path, e);
 		}
-		builder.append(value.substring(i, value.length()));
-		return builder.toString();
 
+		String digest = DigestUtils.md5Hex(content);
+		Template template = TEMPLATES.get(path);
+		if (template != null && template.getDigest().equals(digest))
+			return template;
+
+		log.trace("compiling template {}", path);
+		template = Template.compile(new String(content, StandardCharsets.UTF_8), digest);
+		TEMPLATES.put(path, template);
+		return template;
+	}
+
+	/**
+	 * @return the variables referenced by a template file
+	 */
+	public static Set<String> getReferencedVariables(String file) throws DeploymentException {
+		return getTemplate(file).getVariables();
+	}
+
+	/**
+	 * @return the MD5 sum of the rendered template
+	 */
+	public static String renderedMd5(StackConfig stack, DeploymentFile file) throws DeploymentException {
+		return Hex.encodeHexString(renderDigest(getTemplate(file.getSource()), stack.getPropertiesSnapshot()));
+	}
+
+	private static byte[] renderDigest(Template template, Map<String, String> properties) throws DeploymentException {
+		MessageDigest digest = DigestUtils.getMd5Digest();
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, digest), StandardCharsets.UTF_8))) {
+			template.render(properties, ERROR_ON_MISSING_VAR, writer);
+		} catch (IOException e) {
+			// cannot happen, we write to a null stream
+			throw new DeploymentException("cannot render template", e);
+		}
+		return digest.digest();
 	}
 
-	private static boolean deployFile(StackConfig stack, DeploymentFile file) throws DeploymentException {
+	private static boolean deployFile(StackConfig stack, DeploymentFile file, FileLog fileLog)
+			throws DeploymentException {
 		boolean changed = false;
 		File fileFrom = new File(file.getSource());
 		File fileTo = new File(file.getTarget());
@@ -79,52 +133,49 @@ public class DeploymentUtil {
 		if (!fileFrom.exists())
 			throw new DeploymentException("file " + file.getSource() + " not found");
 
-		// load the new file and replace tokens
-		String fileFromContent = FilesUtils.fileToString(file.getSource(), false);
-		fileFromContent = replaceTokens(fileFromContent, stack.getProperties());
+		Template template = getTemplate(file.getSource());
+		Map<String, String> properties = stack.getPropertiesSnapshot();
 
 		boolean alreadyExists = fileTo.exists();
 		if (!alreadyExists) {
 			// if the file did not exist, ensure parent directory exists
 			File parentFile = fileTo.getParentFile();
 			if (parentFile.mkdirs())
-				log.debug("created directory {}", parentFile);
+				fileLog.debug("created directory {}", parentFile);
 		}
 
-		String fileToContent = null;
-		if (alreadyExists)
-			// if the file already exists, load the content
-			fileToContent = FilesUtils.fileToString(file.getTarget(), false);
-
-		if (!fileFromContent.equals(fileToContent)) {
+		// compare digests, so neither the rendered content nor the target are loaded in memory
+		String md5Source = Hex.encodeHexString(renderDigest(template, properties));
+		if (!alreadyExists || !md5Source.equals(FileDigestCache.md5(fileTo))) {
 			// if content is different, update the file
-			log.info("{} file {}", alreadyExists ? "creating" : "updating", file.getTarget());
-			try {
-				Files.write(fileTo.toPath(), fileFromContent.getBytes());
-			} catch (IOException e) {
-				throw new DeploymentException("cannot write file " + file.getTarget(), e);
-			}
+			fileLog.info("{} file {}", alreadyExists ? "updating" : "creating", file.getTarget());
+			FilesUtils.writeAtomically(fileTo, fileFrom, channel -> {
+				Writer writer = new BufferedWriter(
+						new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+				try {
+					template.render(properties, ERROR_ON_MISSING_VAR, writer);
+				} catch (DeploymentException e) {
+					// already rendered once for the digest, cannot fail here
+					throw new IOException(e);
+				}
+				// flush only, the channel must stay open to be synced
+				writer.flush();
+			});
+			FileDigestCache.invalidate(fileTo);
 			changed = true;
 		}
 
-		changed |= updateFilePermissions(fileFrom, fileTo, alreadyExists);
+		changed |= updateFilePermissions(fileFrom, fileTo, alreadyExists, fileLog);
 
 		return changed;
 	}
 
-	private static String md5(String file) throws DeploymentException {
-		FileInputStream fis = null;
-		try {
-			fis = new FileInputStream(file);
-			return DigestUtils.md5Hex(fis);
-		} catch (Exception e) {
-			throw new DeploymentException("cannot compute MD5 sum for file " + file);
-		} finally {
-			IOUtils.closeQuietly(fis);
-		}
+	public static String md5(String file) throws DeploymentException {
+		return FileDigestCache.md5(new File(file));
 	}
 
-	private static boolean deployRawFile(StackConfig stack, DeploymentFile file) throws DeploymentException {
+	private static boolean deployRawFile(StackConfig stack, DeploymentFile file, FileLog fileLog)
+			throws DeploymentException {
 		boolean changed = false;
 		File fileFrom = new File(file.getSource());
 		File fileTo = new File(file.getTarget());
@@ -133,7 +184,7 @@ public class DeploymentUtil {
 		if (!fileFrom.exists())
 			throw new DeploymentException("file " + file.getSource() + " not found");
 
-		String md5Source = md5(file.getSource());
+		String md5Source = FileDigestCache.md5(fileFrom);
 
 		String md5Target = null;
 		boolean alreadyExists = fileTo.exists();
@@ -141,27 +192,31 @@ public class DeploymentUtil {
 			// if the file did not exist, ensure parent directory exists
 			File parentFile = fileTo.getParentFile();
 			if (parentFile.mkdirs())
-				log.debug("created directory {}", parentFile);
+				fileLog.debug("created directory {}", parentFile);
 		} else
-			md5Target = md5(file.getTarget());
+			md5Target = FileDigestCache.md5(fileTo);
 
 		if (!md5Source.equals(md5Target)) {
-			log.info("{} file {}", alreadyExists ? "creating" : "updating", file.getTarget());
-			try {
-				FileUtils.copyFile(fileFrom, fileTo);
-			} catch (IOException e) {
-				throw new DeploymentException("cannot write file " + file.getTarget(), e);
-			}
+			fileLog.info("{} file {}", alreadyExists ? "updating" : "creating", file.getTarget());
+			FilesUtils.writeAtomically(fileTo, fileFrom, channel -> {
+				try (FileChannel source = FileChannel.open(fileFrom.toPath(), StandardOpenOption.READ)) {
+					long size = source.size();
+					long position = 0;
+					while (position < size)
+						position += source.transferTo(position, size - position, channel);
+				}
+			});
+			FileDigestCache.invalidate(fileTo);
 			changed = true;
 		}
 
-		changed |= updateFilePermissions(fileFrom, fileTo, alreadyExists);
+		changed |= updateFilePermissions(fileFrom, fileTo, alreadyExists, fileLog);
 
 		return changed;
 	}
 
-	private static boolean updateFilePermissions(File source, File target, boolean targetAlreadyExisted)
-			throws DeploymentException {
+	private static boolean updateFilePermissions(File source, File target, boolean targetAlreadyExisted,
+			FileLog fileLog) throws DeploymentException {
 		// now we check the permissions
 		Set<PosixFilePermission> permissionsFrom = FilesUtils.getPermissions(source);
 		Set<PosixFilePermission> permissionsTo = FilesUtils.getPermissions(target);
@@ -169,7 +224,7 @@ public class DeploymentUtil {
 		// update permission if necessary
 		if (!CollectionUtils.isEqualCollection(permissionsFrom, permissionsTo)) {
 			if (targetAlreadyExisted)
-				log.info("updating file permissions {}", target);
+				fileLog.info("updating file permissions {}", target);
 			FilesUtils.updatePermissions(target, permissionsFrom);
 			return true;
 		}
@@ -177,18 +232,98 @@ public class DeploymentUtil {
 		return false;
 	}
 
+	private static boolean deployAnyFile(StackConfig stack, DeploymentFile file, FileLog fileLog)
+			throws DeploymentException {
+		if (file.isParse())
+			return deployFile(stack, file, fileLog);
+		return deployRawFile(stack, file, fileLog);
+	}
+
+	/**
+	 * Ensure a target is only deployed once, identical declarations are merged (a file can be listed both in files
+	 * and environments for example).
+	 */
+	private static List<DeploymentFile> uniqueTargets(String module, List<DeploymentFile> files)
+			throws DeploymentException {
+		Map<String, DeploymentFile> targets = new LinkedHashMap<>();
+		for (DeploymentFile file : files) {
+			DeploymentFile declared = targets.putIfAbsent(file.getTarget(), file);
+			if (declared != null && (!declared.getSource().equals(file.getSource())
+					|| declared.isParse() != file.isParse()))
+				throw new DeploymentException(
+						"target file " + file.getTarget() + " is declared more than once in module " + module);
+		}
+		return new ArrayList<>(targets.values());
+	}
+
 	public static boolean deployFiles(StackConfig stack, String module, List<DeploymentFile> files)
 			throws DeploymentException {
 		boolean changed = false;
 		log.debug("deploying module " + module + " files");
 
-		for (DeploymentFile file : files) {
-			if (file.isParse())
-				changed |= deployFile(stack, file);
-			else
-				changed |= deployRawFile(stack, file);
+		List<DeploymentFile> targets = uniqueTargets(module, files);
+
+		if (targets.size() == 1) {
+			FileLog fileLog = new FileLog();
+			try {
+				return deployAnyFile(stack, targets.get(0), fileLog);
+			} finally {
+				fileLog.replay();
+			}
 		}
 
+		List<FileLog> fileLogs = new ArrayList<>();
+		List<Future<Boolean>> futures = new ArrayList<>();
+		for (DeploymentFile file : targets) {
+			FileLog fileLog = new FileLog();
+			fileLogs.add(fileLog);
+			futures.add(EXECUTOR.submit(() -> deployAnyFile(stack, file, fileLog)));
+		}
+
+		// wait for all the files, even after a failure we don't want writes in progress when returning
+		DeploymentException failure = null;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				changed |= futures.get(i).get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause() instanceof DeploymentException ? (DeploymentException) e.getCause()
+							: new DeploymentException("cannot deploy file " + targets.get(i).getTarget(),
+									e.getCause());
+			} catch (InterruptedException e) {
+				for (Future<Boolean> future : futures)
+					future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new DeploymentException("interrupted while deploying module " + module + " files", e);
+			}
+			// logs are replayed in the declaration order
+			fileLogs.get(i).replay();
+		}
+
+		if (failure != null)
+			throw failure;
+
 		return changed;
 	}
+
+	/**
+	 * Log messages of a single file deployment, files are deployed concurrently but we want the logs (and the report)
+	 * in the declaration order.
+	 */
+	private static class FileLog {
+		private final List<Runnable> entries = new ArrayList<>();
+
+		private void info(String format, Object... arguments) {
+			entries.add(() -> log.info(format, arguments));
+		}
+
+		private void debug(String format, Object... arguments) {
+			entries.add(() -> log.debug(format, arguments));
+		}
+
+		private void replay() {
+			for (Runnable entry : entries)
+				entry.run();
+		}
+	}
 }
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adenops.moustack.agent.DeploymentException;
+import com.adenops.moustack.agent.config.AgentConfig;
+
+/**
+ * MD5 sums of files, cached on (path, size, mtime, inode) and persisted in the agent state directory, so an unchanged
+ * file costs a single stat.
+ */
+public class FileDigestCache {
+	private static final Logger log = LoggerFactory.getLogger(FileDigestCache.class);
+	private static final String CACHE_FILE = "files.digests";
+
+	// map files by chunks, so huge files don't need a huge mapping
+	private static final long MAP_SIZE = 64 * 1024 * 1024;
+
+	// files modified that recently may still be modified within the same mtime tick, don't trust their stat
+	private static final long RACY_DELAY = 2000;
+
+	private static final Map<String, String> entries = new ConcurrentHashMap<>();
+	private static volatile boolean loaded = false;
+
+	private static String stat(BasicFileAttributes attributes) {
+		return attributes.size() + " " + attributes.lastModifiedTime().toMillis() + " " + attributes.fileKey();
+	}
+
+	private static File getCacheFile() {
+		String stateDir = AgentConfig.getInstance().getStateDir();
+		return stateDir == null ? null : new File(stateDir, CACHE_FILE);
+	}
+
+	private static void load() {
+		if (loaded)
+			return;
+		synchronized (entries) {
+			if (loaded)
+				return;
+			File file = getCacheFile();
+			if (file != null && file.exists()) {
+				try {
+					Properties properties = PropertiesUtil.loadProperties(file);
+					for (String path : properties.stringPropertyNames())
+						entries.put(path, properties.getProperty(path));
+					log.debug("loaded {} file digests", entries.size());
+				} catch (IOException e) {
+					log.warn("cannot load file digests from {}: {}", file, e.getMessage());
+				}
+			}
+			loaded = true;
+		}
+	}
+
+	private static String digest(File file, long size) throws IOException {
+		MessageDigest digest = DigestUtils.getMd5Digest();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (long position = 0; position < size; position += MAP_SIZE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(MAP_SIZE, size - position));
+				digest.update(buffer);
+			}
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	public static String md5(File file) throws DeploymentException {
+		load();
+
+		String path = file.getAbsolutePath();
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			String stat = stat(attributes);
+
+			String entry = entries.get(path);
+			if (entry != null && entry.endsWith(" " + stat))
+				return entry.substring(0, entry.indexOf(' '));
+
+			String md5 = digest(file, attributes.size());
+			put(path, md5, attributes);
+			return md5;
+		} catch (IOException e) {
+			throw new DeploymentException("cannot compute MD5 sum for file " + file, e);
+		}
+	}
+
+	/**
+	 * Forget the digest of a file we just wrote. Its mtime is within the racy delay, so it cannot be recorded yet: it
+	 * will be hashed and recorded by the next lookup.
+	 */
+	public static void invalidate(File file) {
+		load();
+		entries.remove(file.getAbsolutePath());
+	}
+
+	private static void put(String path, String md5, BasicFileAttributes attributes) {
+		if (System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() < RACY_DELAY) {
+			entries.remove(path);
+			return;
+		}
+		entries.put(path, md5 + " " + stat(attributes));
+	}
+
+	/**
+	 * Persist the cache, entries of files which do not exist anymore are dropped.
+	 */
+	public static void save() {
+		File file = getCacheFile();
+		if (file == null || !loaded)
+			return;
+
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			if (new File(entry.getKey()).exists())
+				properties.setProperty(entry.getKey(), entry.getValue());
+			else
+				entries.remove(entry.getKey());
+		}
+
+		// the state directory is created by the first successful run
+		if (!file.getParentFile().exists())
+			return;
+
+		try {
+			PropertiesUtil.storeProperties(properties, file);
+		} catch (IOException e) {
+			log.warn("cannot save file digests in {}: {}", file, e.getMessage());
+		}
+	}
+}
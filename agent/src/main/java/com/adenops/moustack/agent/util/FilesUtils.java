@@ -22,8 +22,12 @@ package com.adenops.moustack.agent.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFileAttributes;
@@ -41,6 +45,57 @@ import com.adenops.moustack.agent.DeploymentException;
 public class FilesUtils {
 	private static final Logger log = LoggerFactory.getLogger(FilesUtils.class);
 
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public interface ContentWriter {
+		void write(FileChannel channel) throws IOException;
+	}
+
+	/**
+	 * Write a file through a temporary file in the same directory, synced and then moved in place, so readers never
+	 * see a partially written file.
+	 *
+	 * @param attributesFrom
+	 *            where to take the permissions from if the target does not exist yet
+	 */
+	public static void writeAtomically(File target, File attributesFrom, ContentWriter writer)
+			throws DeploymentException {
+		Path tmp = null;
+		try {
+			// replace the file pointed by a link, not the link itself
+			Path targetPath = Files.isSymbolicLink(target.toPath()) ? target.toPath().toRealPath() : target.toPath();
+			boolean exists = Files.exists(targetPath);
+
+			tmp = Files.createTempFile(targetPath.getParent(), "." + targetPath.getFileName() + ".", ".tmp");
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				writer.write(channel);
+				channel.force(true);
+			}
+
+			PosixFileAttributes attributes = Files.readAttributes(exists ? targetPath : attributesFrom.toPath(),
+					PosixFileAttributes.class);
+			Files.setPosixFilePermissions(tmp, attributes.permissions());
+			if (exists) {
+				PosixFileAttributeView view = Files.getFileAttributeView(tmp, PosixFileAttributeView.class);
+				view.setOwner(attributes.owner());
+				view.setGroup(attributes.group());
+			}
+
+			Files.move(tmp, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			tmp = null;
+		} catch (IOException e) {
+			throw new DeploymentException("cannot write file " + target, e);
+		} finally {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					log.warn("cannot delete temporary file {}", tmp);
+				}
+			}
+		}
+	}
+
 	public static String fileToString(String path, boolean isResource) throws DeploymentException {
 		try {
 			return IOUtils.toString(
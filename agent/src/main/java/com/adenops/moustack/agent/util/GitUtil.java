@@ -23,7 +23,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.Git;
@@ -37,6 +39,7 @@ import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -175,4 +178,35 @@ public class GitUtil {
 
 		git.close();
 	}
+
+	/**
+	 * List the paths (relative to the repository root) modified between two commits.
+	 *
+	 * @return the modified paths or null if the diff cannot be computed (unknown commit for example)
+	 */
+	public static Set<String> getChangedPaths(String fromCommit, String toCommit) {
+		File repoDir = new File(AgentConfig.getInstance().getConfigDir());
+
+		try (Git git = Git.open(repoDir);
+				DiffFormatter formatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+			ObjectId from = git.getRepository().resolve(fromCommit);
+			ObjectId to = git.getRepository().resolve(toCommit);
+			if (from == null || to == null || !git.getRepository().hasObject(from))
+				return null;
+
+			formatter.setRepository(git.getRepository());
+
+			Set<String> paths = new HashSet<>();
+			for (DiffEntry entry : formatter.scan(from, to)) {
+				if (!DiffEntry.DEV_NULL.equals(entry.getOldPath()))
+					paths.add(entry.getOldPath());
+				if (!DiffEntry.DEV_NULL.equals(entry.getNewPath()))
+					paths.add(entry.getNewPath());
+			}
+			return paths;
+		} catch (RevisionSyntaxException | IOException e) {
+			log.warn("cannot diff commits {} and {}: {}", fromCommit, toCommit, e.getMessage());
+			return null;
+		}
+	}
 }
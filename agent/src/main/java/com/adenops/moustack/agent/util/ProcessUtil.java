@@ -20,13 +20,26 @@
 package com.adenops.moustack.agent.util;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +50,27 @@ public class ProcessUtil {
 	private static final Logger log = LoggerFactory.getLogger(ProcessUtil.class);
 	private static final File WORKING_DIR = new File("/tmp");
 	private static final long EXEC_TIMEOUT = 600;
-	private static final long MAX_CAPTURE_LENGTH = 1024 * 1024;
+	private static final int MAX_CAPTURE_LENGTH = 1024 * 1024;
+	private static final int MAX_STDERR_LENGTH = 64 * 1024;
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	// grace delay between SIGTERM and SIGKILL
+	private static final long KILL_TIMEOUT = 10;
+
+	// how long we wait for the streams after the process exited (a child may have inherited them)
+	private static final long PUMP_TIMEOUT = 5;
+
+	// stdout and stderr are drained concurrently, so a verbose process never blocks on a full pipe
+	private static final ExecutorService PUMPS = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "process-pump-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 
 	public static ExecResult execute(String... command) throws DeploymentException {
 		return execute(null, null, null, false, command);
@@ -45,17 +78,27 @@ public class ProcessUtil {
 
 	public static ExecResult execute(String user, File cwd, Map<String, String> env, boolean allowFailure,
 			String... command) throws DeploymentException {
+		return execute(user, cwd, env, allowFailure, null, command);
+	}
+
+	/**
+	 * @param stdoutListener
+	 *            if not null, receives the stdout lines while the process is running
+	 */
+	public static ExecResult execute(String user, File cwd, Map<String, String> env, boolean allowFailure,
+			Consumer<String> stdoutListener, String... command) throws DeploymentException {
 		log.debug("executing [{}]", String.join(" ", command));
 
 		ExecResult result = new ExecResult();
 		result.setCommand(String.join(" ", command));
-		ProcessBuilder processBuilder = new ProcessBuilder(command);
 
 		// is the command has to be executed with a specific user, wrap it with su
 		// if not, we assume we are running as root
 		if (user != null && !user.isEmpty())
 			command = new String[] { "su", "-s", "/bin/sh", "-c", String.join(" ", command), user };
 
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+
 		// set working directory
 		processBuilder.directory(cwd == null ? WORKING_DIR : cwd);
 
@@ -64,51 +107,173 @@ public class ProcessUtil {
 			processBuilder.environment().putAll(env);
 
 		// start the process
-		Process process = null;
+		long start = System.currentTimeMillis();
+		final Process process;
 		try {
 			process = processBuilder.start();
 		} catch (IOException e) {
 			throw new DeploymentException("error while starting process builder", e);
 		}
 
+		// the process never reads stdin
+		IOUtils.closeQuietly(process.getOutputStream());
+
+		RingBuffer stdout = new RingBuffer(MAX_CAPTURE_LENGTH);
+		RingBuffer stderr = new RingBuffer(MAX_STDERR_LENGTH);
+		Future<?> stdoutPump = PUMPS.submit(() -> pump(process.getInputStream(), stdout, stdoutListener));
+		Future<?> stderrPump = PUMPS.submit(() -> pump(process.getErrorStream(), stderr, null));
+
 		// wait for the process to finish
 		try {
-			process.waitFor(EXEC_TIMEOUT, TimeUnit.SECONDS);
+			if (!process.waitFor(EXEC_TIMEOUT, TimeUnit.SECONDS)) {
+				kill(process);
+				throw new DeploymentException(
+						String.format("command [%s] timed out after %ds", result.getCommand(), EXEC_TIMEOUT));
+			}
 		} catch (InterruptedException e) {
-			process.destroy();
-			throw new DeploymentException(
-					String.format("command [%s] timed out or was interrupted", String.join(" ", command)), e);
+			kill(process);
+			Thread.currentThread().interrupt();
+			throw new DeploymentException(String.format("command [%s] was interrupted", result.getCommand()), e);
+		} finally {
+			result.setDuration(System.currentTimeMillis() - start);
 		}
 		result.setExitCode(process.exitValue());
 
-		// read stdout
-		try {
-			IOUtils.copyLarge(process.getInputStream(), result.getStdout(), 0, MAX_CAPTURE_LENGTH);
-		} catch (IOException e) {
-			log.error("error while reading command stdout: {}", e.getMessage());
-		}
+		waitPump(stdoutPump, result.getCommand());
+		waitPump(stderrPump, result.getCommand());
+		stdout.writeTo(result.getStdout());
+		stderr.writeTo(result.getStderr());
+
+		if (stdout.isTruncated())
+			log.warn("command [{}] output exceeded {} bytes, only the end has been kept", result.getCommand(),
+					MAX_CAPTURE_LENGTH);
+
+		log.debug("command [{}] exited with value {} after {}ms", result.getCommand(), result.getExitCode(),
+				result.getDuration());
 
 		// display stderr if relevant
 		// if we allow failure, we can assume we don't care about stderr
 		if (!allowFailure) {
-			BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new ByteArrayInputStream(result.getStderr().toByteArray()), StandardCharsets.UTF_8));
 			String line = null;
 			try {
-				while ((line = stderr.readLine()) != null)
+				while ((line = reader.readLine()) != null)
 					log.error(line);
 			} catch (IOException e) {
 				log.error("error while reading command stderr: {}", e.getMessage());
 			}
 		}
 
-		IOUtils.closeQuietly(process.getInputStream());
-		IOUtils.closeQuietly(process.getErrorStream());
-
 		// throw an exception if process failed
-		if (!allowFailure && process.exitValue() != 0)
+		if (!allowFailure && result.getExitCode() != 0)
 			throw new DeploymentException(
-					String.format("command exited with value %d: %s", process.exitValue(), result.getCommand()));
+					String.format("command exited with value %d: %s", result.getExitCode(), result.getCommand()));
 
 		return result;
 	}
+
+	private static void kill(Process process) {
+		process.destroy();
+		try {
+			if (process.waitFor(KILL_TIMEOUT, TimeUnit.SECONDS))
+				return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.warn("process did not terminate, killing it");
+		process.destroyForcibly();
+	}
+
+	private static void waitPump(Future<?> pump, String command) {
+		try {
+			pump.get(PUMP_TIMEOUT, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			// the pump thread will end when the last process holding the stream exits
+			log.warn("command [{}] output is still open after exit, ignoring the remaining output", command);
+		} catch (ExecutionException e) {
+			log.error("error while reading command output: {}", e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void pump(InputStream stream, RingBuffer buffer, Consumer<String> listener) {
+		ByteArrayOutputStream line = listener == null ? null : new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		try {
+			int read;
+			while ((read = stream.read(chunk)) != -1) {
+				buffer.write(chunk, 0, read);
+				if (listener == null)
+					continue;
+				int from = 0;
+				for (int i = 0; i < read; i++) {
+					if (chunk[i] != '\n')
+						continue;
+					line.write(chunk, from, i - from);
+					listener.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+					line.reset();
+					from = i + 1;
+				}
+				// keep the partial line, unless it is unreasonably long
+				if (line.size() + read - from > MAX_LINE_LENGTH) {
+					line.write(chunk, from, read - from);
+					listener.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+					line.reset();
+				} else
+					line.write(chunk, from, read - from);
+			}
+			if (listener != null && line.size() > 0)
+				listener.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			// the stream is closed when the process is destroyed
+			log.trace("process stream closed: {}", e.getMessage());
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+	}
+
+	/**
+	 * Keep the last bytes written, so a huge output cannot exhaust the memory.
+	 */
+	private static class RingBuffer {
+		private final byte[] data;
+		private int position = 0;
+		private long total = 0;
+
+		private RingBuffer(int capacity) {
+			data = new byte[capacity];
+		}
+
+		private synchronized void write(byte[] bytes, int offset, int length) {
+			total += length;
+			if (length >= data.length) {
+				System.arraycopy(bytes, offset + length - data.length, data, 0, data.length);
+				position = 0;
+				return;
+			}
+			int first = Math.min(length, data.length - position);
+			System.arraycopy(bytes, offset, data, position, first);
+			System.arraycopy(bytes, offset + first, data, 0, length - first);
+			position = (position + length) % data.length;
+		}
+
+		private synchronized boolean isTruncated() {
+			return total > data.length;
+		}
+
+		private synchronized void writeTo(OutputStream out) {
+			try {
+				if (total > data.length) {
+					out.write(data, position, data.length - position);
+					out.write(data, 0, position);
+				} else
+					out.write(data, 0, position);
+			} catch (IOException e) {
+				// cannot happen with a memory stream
+				throw new IllegalStateException(e);
+			}
+		}
+	}
 }
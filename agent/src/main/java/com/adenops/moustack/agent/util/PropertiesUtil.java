@@ -19,9 +19,14 @@
 
 package com.adenops.moustack.agent.util;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Properties;
 
 import org.slf4j.Logger;
@@ -48,6 +53,23 @@ public class PropertiesUtil {
 		}
 	}
 
+	public static Properties loadProperties(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		return properties;
+	}
+
+	public static void storeProperties(Properties properties, File file) throws IOException {
+		// write a temporary file first so an interrupted run cannot leave a truncated file
+		File tmp = new File(file.getPath() + ".tmp");
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			properties.store(out, null);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
 	public static Properties loadHostProperties(AgentConfig agentConfig) throws DeploymentException {
 		log.debug("loading variables");
 		Properties variables = new Properties();
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.util;
+
+/**
+ * RPM version ordering, same rules as rpmvercmp() from librpm.
+ */
+public class RpmVersionUtil {
+	private static boolean isAlpha(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isAlnum(char c) {
+		return isDigit(c) || isAlpha(c);
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Compare two version (or release) strings, returns a negative value, zero or a positive value.
+	 */
+	public static int rpmvercmp(String a, String b) {
+		if (a.equals(b))
+			return 0;
+
+		int one = 0, two = 0;
+		int lengthOne = a.length(), lengthTwo = b.length();
+
+		while (one < lengthOne || two < lengthTwo) {
+			// separators are not significant
+			while (one < lengthOne && !isAlnum(a.charAt(one)) && a.charAt(one) != '~' && a.charAt(one) != '^')
+				one++;
+			while (two < lengthTwo && !isAlnum(b.charAt(two)) && b.charAt(two) != '~' && b.charAt(two) != '^')
+				two++;
+
+			char c1 = one < lengthOne ? a.charAt(one) : 0;
+			char c2 = two < lengthTwo ? b.charAt(two) : 0;
+
+			// tilde sorts before everything, even the end of the string
+			if (c1 == '~' || c2 == '~') {
+				if (c1 != '~')
+					return 1;
+				if (c2 != '~')
+					return -1;
+				one++;
+				two++;
+				continue;
+			}
+
+			// caret sorts after the end of the string but before anything else
+			if (c1 == '^' || c2 == '^') {
+				if (c1 == 0)
+					return -1;
+				if (c2 == 0)
+					return 1;
+				if (c1 != '^')
+					return 1;
+				if (c2 != '^')
+					return -1;
+				one++;
+				two++;
+				continue;
+			}
+
+			if (c1 == 0 || c2 == 0)
+				break;
+
+			int start1 = one, start2 = two;
+			boolean numeric = isDigit(c1);
+			if (numeric) {
+				while (one < lengthOne && isDigit(a.charAt(one)))
+					one++;
+				while (two < lengthTwo && isDigit(b.charAt(two)))
+					two++;
+			} else {
+				while (one < lengthOne && isAlpha(a.charAt(one)))
+					one++;
+				while (two < lengthTwo && isAlpha(b.charAt(two)))
+					two++;
+			}
+
+			// numeric segments are always newer than alpha segments
+			if (two == start2)
+				return numeric ? 1 : -1;
+
+			String segment1 = a.substring(start1, one);
+			String segment2 = b.substring(start2, two);
+
+			if (numeric) {
+				segment1 = stripLeadingZeros(segment1);
+				segment2 = stripLeadingZeros(segment2);
+				// the longest number wins
+				if (segment1.length() != segment2.length())
+					return segment1.length() > segment2.length() ? 1 : -1;
+			}
+
+			int result = segment1.compareTo(segment2);
+			if (result != 0)
+				return result > 0 ? 1 : -1;
+		}
+
+		if (one >= lengthOne && two >= lengthTwo)
+			return 0;
+
+		// whichever version still has characters left wins
+		return one < lengthOne ? 1 : -1;
+	}
+
+	private static String stripLeadingZeros(String number) {
+		int i = 0;
+		while (i < number.length() - 1 && number.charAt(i) == '0')
+			i++;
+		return number.substring(i);
+	}
+
+	/**
+	 * Compare two [epoch:]version[-release] strings. The epoch is only compared if both sides specify it, the
+	 * release only if both sides specify it (like yum does when matching a package specification).
+	 */
+	public static int compareEVR(String a, String b) {
+		String[] evr1 = splitEVR(a);
+		String[] evr2 = splitEVR(b);
+
+		int result;
+		if (evr1[0] != null && evr2[0] != null) {
+			result = rpmvercmp(evr1[0], evr2[0]);
+			if (result != 0)
+				return result;
+		}
+
+		result = rpmvercmp(evr1[1], evr2[1]);
+		if (result != 0 || evr1[2] == null || evr2[2] == null)
+			return result;
+
+		return rpmvercmp(evr1[2], evr2[2]);
+	}
+
+	private static String[] splitEVR(String evr) {
+		String epoch = null;
+		String release = null;
+
+		int index = evr.indexOf(':');
+		if (index >= 0) {
+			epoch = evr.substring(0, index);
+			evr = evr.substring(index + 1);
+		}
+
+		index = evr.lastIndexOf('-');
+		if (index >= 0) {
+			release = evr.substring(index + 1);
+			evr = evr.substring(0, index);
+		}
+
+		return new String[] { epoch, evr, release };
+	}
+}
@@ -21,17 +21,40 @@ package com.adenops.moustack.agent.util;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.adenops.moustack.agent.DeploymentException;
 import com.adenops.moustack.agent.model.exec.ExecResult;
+import com.adenops.moustack.agent.model.systemd.UnitState;
 
+/**
+ * systemctl wrappers.
+ *
+ * Units states are cached for the duration of a run: the units of the deployment plan are queried with a single
+ * "systemctl show" and each unit is invalidated when we modify it (all of them after a daemon-reload).
+ */
 public class SystemCtlUtil {
-	private static final Pattern FRAGMENTPATH_REGEX = Pattern.compile("^FragmentPath=/lib/systemd/system/(.*)\n");
+	private static final Logger log = LoggerFactory.getLogger(SystemCtlUtil.class);
+	private static final String SHOW_PROPERTIES = "--property=Id,ActiveState,UnitFileState,NeedDaemonReload,FragmentPath";
+	private static final String[] VENDOR_UNITS_PATHS = new String[] { "/lib/systemd/system/",
+			"/usr/lib/systemd/system/" };
+
+	private static final Map<String, UnitState> units = new ConcurrentHashMap<>();
+	private static final Set<String> plannedUnits = ConcurrentHashMap.newKeySet();
+
+	// incremented on each daemon-reload, so concurrent reload requests can be coalesced
+	private static final AtomicLong reloadGeneration = new AtomicLong();
 
 	/*
 	 * Global wrapper that assembles and executes a systemctl command.
@@ -63,63 +86,183 @@ public class SystemCtlUtil {
 		return result.getExitCode() == 0;
 	}
 
+	/**
+	 * Reset the cache at the beginning of a run, the planned units will be queried together on first use.
+	 */
+	public static void prepare(Collection<String> planUnits) {
+		units.clear();
+		plannedUnits.clear();
+		plannedUnits.addAll(planUnits);
+	}
+
+	/**
+	 * Forget the cached state of units whose definition may have changed (i.e. packages installed or removed).
+	 */
+	public static void invalidate(String... names) {
+		for (String unit : names)
+			units.remove(unit);
+	}
+
 	/*
-	 * We use FragmentPath to help detect if there has been a unit override in /etc, it seems systemd does
-	 * not provide a proper mechanism for that.
+	 * Parse "systemctl show" output, one block of properties per unit separated by an empty line, in the arguments
+	 * order.
 	 */
-	public static boolean unitIsUpdated(String unit) throws DeploymentException {
-		ExecResult result = systemctlExec("show", unit, "--property=NeedDaemonReload", "--property=FragmentPath");
+	private static List<Map<String, String>> parseShow(String stdout) {
+		List<Map<String, String>> blocks = new ArrayList<>();
+		Map<String, String> block = null;
+		for (String line : stdout.split("\n")) {
+			if (line.isEmpty()) {
+				block = null;
+				continue;
+			}
+			if (block == null) {
+				block = new HashMap<>();
+				blocks.add(block);
+			}
+			int index = line.indexOf('=');
+			if (index > 0)
+				block.put(line.substring(0, index), line.substring(index + 1));
+		}
+		return blocks;
+	}
 
+	/*
+	 * Query the units and cache their state, returns the state of the first one. The cache may be cleared by another
+	 * thread as soon as we return, callers must use the returned state.
+	 */
+	private static synchronized UnitState loadUnits(List<String> names) throws DeploymentException {
+		long generation = reloadGeneration.get();
+
+		String[] arguments = new String[names.size() + 1];
+		arguments[0] = SHOW_PROPERTIES;
+		for (int i = 0; i < names.size(); i++)
+			arguments[i + 1] = names.get(i);
+
+		ExecResult result = systemctlExec("show", arguments);
 		if (result.getExitCode() != 0)
 			throw new DeploymentException("systemctl command failed with exit code " + result.getExitCode());
 
-		String stdout = new String(result.getStdout().toByteArray(), StandardCharsets.UTF_8);
+		List<Map<String, String>> blocks = parseShow(new String(result.getStdout().toByteArray(), StandardCharsets.UTF_8));
+		if (blocks.size() != names.size())
+			throw new DeploymentException(String.format("systemctl show returned %d units instead of %d",
+					blocks.size(), names.size()));
+
+		UnitState first = null;
+		for (int i = 0; i < names.size(); i++) {
+			UnitState state = new UnitState(names.get(i), blocks.get(i), generation);
+			units.put(names.get(i), state);
+			if (first == null)
+				first = state;
+		}
+		return first;
+	}
+
+	private static UnitState getUnit(String unit) throws DeploymentException {
+		UnitState state = units.get(unit);
+		if (state != null)
+			return state;
 
+		// query the requested unit along with all the planned units we don't know yet
+		List<String> names = new ArrayList<>();
+		names.add(unit);
+		for (String planned : plannedUnits)
+			if (!planned.equals(unit) && !units.containsKey(planned))
+				names.add(planned);
+
+		log.trace("querying units {}", names);
+		return loadUnits(names);
+	}
+
+	/*
+	 * We use FragmentPath to help detect if there has been a unit override in /etc, it seems systemd does
+	 * not provide a proper mechanism for that.
+	 */
+	public static boolean unitIsUpdated(String unit) throws DeploymentException {
+		return unitIsUpdated(getUnit(unit));
+	}
+
+	private static boolean unitIsUpdated(UnitState state) {
 		// If systemd has detected it needs a reload.
-		if (stdout.contains("NeedDaemonReload=yes"))
+		if (state.isNeedDaemonReload())
 			return true;
 
-		Matcher matcher = FRAGMENTPATH_REGEX.matcher(stdout);
-		if (!matcher.find())
+		String fragmentPath = state.getFragmentPath();
+		if (fragmentPath == null)
 			return false;
 
 		// Check if the same service file exists in /etc
-		return new File(String.format("/etc/systemd/system/%s", matcher.group(1))).exists();
+		for (String path : VENDOR_UNITS_PATHS)
+			if (fragmentPath.startsWith(path))
+				return new File("/etc/systemd/system/" + fragmentPath.substring(path.length())).exists();
+		return false;
 	}
 
 	public static void daemonReload() throws DeploymentException {
+		daemonReload(reloadGeneration.get());
+	}
+
+	/*
+	 * Reload unless another reload happened since the state requiring it has been read.
+	 */
+	private static synchronized void daemonReload(long observedGeneration) throws DeploymentException {
+		if (reloadGeneration.get() != observedGeneration) {
+			log.debug("systemd already reloaded");
+			return;
+		}
+
 		ExecResult result = systemctlExec("daemon-reload");
 		if (result.getExitCode() != 0)
 			throw new DeploymentException("systemctl command failed with exit code " + result.getExitCode());
+
+		reloadGeneration.incrementAndGet();
+		units.clear();
 	}
 
 	public static boolean unitIsActive(String unit) throws DeploymentException {
-		return systemctlCheck("is-active", unit);
+		return getUnit(unit).isActive();
 	}
 
 	public static boolean unitIsEnabled(String unit) throws DeploymentException {
-		return systemctlCheck("is-enabled", unit);
+		return getUnit(unit).isEnabled();
+	}
+
+	/*
+	 * Run a command changing the state of a unit. A concurrent lookup may cache the unit while the command runs, so
+	 * the state is forgotten again once it completed.
+	 */
+	private static void mutate(String unit, String command) throws DeploymentException {
+		invalidate(unit);
+		try {
+			systemctlCmd(command, unit);
+		} finally {
+			invalidate(unit);
+		}
 	}
 
 	public static void unitStop(String unit) throws DeploymentException {
-		systemctlCmd("stop", unit);
+		mutate(unit, "stop");
 	}
 
 	public static void unitRestart(String unit) throws DeploymentException {
-		systemctlCmd("restart", unit);
+		mutate(unit, "restart");
 	}
 
 	public static void unitEnable(String unit) throws DeploymentException {
-		systemctlCmd("enable", unit);
+		mutate(unit, "enable");
 	}
 
 	public static void unitDisable(String unit) throws DeploymentException {
-		systemctlCmd("disable", unit);
+		mutate(unit, "disable");
 	}
 
 	public static boolean startService(boolean forceRestart, String service) throws DeploymentException {
-		if (unitIsUpdated(service))
-			daemonReload();
+		// the configuration changed, the unit files may have been updated too
+		if (forceRestart)
+			invalidate(service);
+
+		UnitState state = getUnit(service);
+		if (unitIsUpdated(state))
+			daemonReload(state.getGeneration());
 
 		if (!unitIsEnabled(service))
 			unitEnable(service);
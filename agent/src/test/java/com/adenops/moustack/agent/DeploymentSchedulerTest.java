@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adenops.moustack.agent.model.deployment.DeploymentFile;
+import com.adenops.moustack.agent.module.BaseModule;
+
+public class DeploymentSchedulerTest {
+	private static final int WORKERS = 4;
+
+	private List<BaseModule> plan;
+	private Map<String, List<String>> dependencies;
+	private List<String> events;
+
+	private static class FakeModule extends BaseModule {
+		private FakeModule(String name) {
+			super(name);
+		}
+
+		@Override
+		public boolean deploy(DeploymentEnvironment env) throws DeploymentException {
+			return false;
+		}
+
+		@Override
+		protected boolean deployConfig(DeploymentEnvironment env) throws DeploymentException {
+			return false;
+		}
+
+		@Override
+		public void validate(DeploymentEnvironment env) throws DeploymentException {
+		}
+
+		@Override
+		public String getType() {
+			return "fake";
+		}
+
+		@Override
+		public List<DeploymentFile> getFiles() {
+			return Collections.emptyList();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		plan = new ArrayList<>();
+		dependencies = new HashMap<>();
+		events = Collections.synchronizedList(new ArrayList<>());
+	}
+
+	private void addModule(String name, String... moduleDependencies) {
+		plan.add(new FakeModule(name));
+		if (moduleDependencies.length > 0)
+			dependencies.put(name, Arrays.asList(moduleDependencies));
+	}
+
+	private DeploymentScheduler.ModuleTask record(DeploymentScheduler.ModuleTask task) {
+		return module -> {
+			events.add("start " + module.getName());
+			boolean changed = task.execute(module);
+			events.add("end " + module.getName());
+			return changed;
+		};
+	}
+
+	@Test
+	public void testImplicitOrder() throws DeploymentException {
+		addModule("a");
+		addModule("b");
+		addModule("c");
+
+		boolean changed = new DeploymentScheduler(plan, dependencies, WORKERS)
+				.run(record(module -> module.getName().equals("b")));
+
+		assertThat(changed).isTrue();
+		assertThat(events).containsExactly("start a", "end a", "start b", "end b", "start c", "end c");
+	}
+
+	@Test
+	public void testDeclaredDependencies() throws DeploymentException {
+		// b and c only complete if they run at the same time
+		CountDownLatch parallel = new CountDownLatch(2);
+		addModule("a");
+		addModule("b", "a");
+		addModule("c", "a", "unknown");
+		addModule("d", "b", "c");
+
+		boolean changed = new DeploymentScheduler(plan, dependencies, WORKERS).run(record(module -> {
+			if (module.getName().equals("b") || module.getName().equals("c")) {
+				parallel.countDown();
+				try {
+					if (!parallel.await(10, TimeUnit.SECONDS))
+						throw new DeploymentException("modules b and c did not run in parallel");
+				} catch (InterruptedException e) {
+					throw new DeploymentException("interrupted", e);
+				}
+			}
+			return false;
+		}));
+
+		assertThat(changed).isFalse();
+		assertThat(events).hasSize(8);
+		assertThat(events.subList(0, 2)).containsExactly("start a", "end a");
+		assertThat(events.subList(2, 6)).containsOnly("start b", "end b", "start c", "end c");
+		assertThat(events.subList(6, 8)).containsExactly("start d", "end d");
+	}
+
+	@Test
+	public void testCycle() {
+		addModule("a", "c");
+		addModule("b", "a");
+		addModule("c", "b");
+
+		try {
+			new DeploymentScheduler(plan, dependencies, WORKERS);
+			fail("cycle not detected");
+		} catch (DeploymentException e) {
+			assertThat(e.getMessage()).startsWith("dependency cycle detected: ");
+		}
+	}
+
+	@Test
+	public void testSelfDependency() {
+		addModule("a", "a");
+
+		try {
+			new DeploymentScheduler(plan, dependencies, WORKERS);
+			fail("self dependency not detected");
+		} catch (DeploymentException e) {
+			assertThat(e.getMessage()).isEqualTo("module a cannot depend on itself");
+		}
+	}
+
+	@Test
+	public void testFailure() throws DeploymentException {
+		CountDownLatch started = new CountDownLatch(1);
+		addModule("a");
+		addModule("b", "a");
+		addModule("c", "a");
+		addModule("d", "b");
+		addModule("e", "c");
+
+		try {
+			new DeploymentScheduler(plan, dependencies, WORKERS).run(record(module -> {
+				switch (module.getName()) {
+				case "b":
+					// fail once c is running
+					try {
+						started.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+					throw new DeploymentException("b failed");
+				case "c":
+					started.countDown();
+					try {
+						Thread.sleep(10000);
+					} catch (InterruptedException e) {
+						events.add("interrupted c");
+					}
+					break;
+				}
+				return false;
+			}));
+			fail("failure not propagated");
+		} catch (DeploymentException e) {
+			assertThat(e.getMessage()).isEqualTo("b failed");
+		}
+
+		// c is interrupted and neither d nor e are started
+		assertThat(events).contains("interrupted c").doesNotContain("start d", "start e", "end b");
+	}
+}
@@ -50,6 +50,7 @@ public class DeploymentTest {
 		agentConfig.setProfile("junit");
 		agentConfig.setLogLevel(LogLevel.DEBUG);
 		agentConfig.setConfigDir(TMP_DIR.toPath().resolve("config").toFile().toURI().toString());
+		agentConfig.setStateDir(TMP_DIR.toPath().resolve("state").toString());
 
 		File source = new File(DeploymentTest.class.getResource("/profiles").toURI());
 
@@ -76,6 +77,7 @@ public class DeploymentTest {
 	@AfterClass
 	public static void tearDown() throws Exception {
 		docker.discardContainer(container);
+		docker.close();
 		FileUtils.forceDelete(TMP_DIR);
 	}
 
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.client;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Paths;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DpkgStatusIndexTest {
+	private static DpkgStatusIndex index;
+
+	@BeforeClass
+	public static void load() throws Exception {
+		index = DpkgStatusIndex.load(Paths.get(DpkgStatusIndexTest.class.getResource("/dpkg/status").toURI()));
+	}
+
+	@Test
+	public void testStanzas() {
+		assertThat(index.getEntries()).extracting("name").containsExactly("libc6", "libc6", "postfix",
+				"rabbitmq-server", "exim4-base", "mysql-client");
+
+		DpkgStatusIndex.Entry entry = index.get("rabbitmq-server");
+		assertThat(entry.getVersion()).isEqualTo("3.5.7-1ubuntu0.16.04.2");
+		assertThat(entry.getBinaryName()).isEqualTo("rabbitmq-server");
+	}
+
+	@Test
+	public void testMultiLineFields() {
+		// continuation lines are skipped, even when they look like a field
+		assertThat(index.get("not-a-package")).isNull();
+
+		DpkgStatusIndex.Entry entry = index.get("postfix");
+		assertThat(entry.isInstalled()).isTrue();
+		assertThat(entry.getVersion()).isEqualTo("3.1.0-3ubuntu0.3");
+	}
+
+	@Test
+	public void testStatus() {
+		assertThat(index.get("postfix").isHold()).isFalse();
+
+		DpkgStatusIndex.Entry entry = index.get("rabbitmq-server");
+		assertThat(entry.isInstalled()).isTrue();
+		assertThat(entry.isHold()).isTrue();
+
+		assertThat(index.get("exim4-base").isInstalled()).isFalse();
+		assertThat(index.get("mysql-client").isInstalled()).isFalse();
+	}
+
+	@Test
+	public void testMultiArch() {
+		// the installed architecture is preferred over the removed one
+		DpkgStatusIndex.Entry entry = index.get("libc6");
+		assertThat(entry.isInstalled()).isTrue();
+		assertThat(entry.getVersion()).isEqualTo("2.23-0ubuntu10");
+		assertThat(entry.getBinaryName()).isEqualTo("libc6:amd64");
+	}
+
+	@Test
+	public void testProvides() {
+		// virtual packages are not indexed
+		assertThat(index.get("mail-transport-agent")).isNull();
+		assertThat(index.get("default-mta")).isNull();
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2016 Adenops Consultants Informatique Inc.
+ *
+ * This file is part of the Moustack project, see http://www.moustack.org for
+ * more information.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.adenops.moustack.agent.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Cases from the rpmvercmp test suite of rpm.
+ */
+public class RpmVersionUtilTest {
+
+	private static void assertVercmp(String a, String b, int expected) {
+		assertThat(Integer.signum(RpmVersionUtil.rpmvercmp(a, b))).as("rpmvercmp(%s, %s)", a, b).isEqualTo(expected);
+		assertThat(Integer.signum(RpmVersionUtil.rpmvercmp(b, a))).as("rpmvercmp(%s, %s)", b, a).isEqualTo(-expected);
+	}
+
+	private static void assertEVR(String a, String b, int expected) {
+		assertThat(Integer.signum(RpmVersionUtil.compareEVR(a, b))).as("compareEVR(%s, %s)", a, b).isEqualTo(expected);
+		assertThat(Integer.signum(RpmVersionUtil.compareEVR(b, a))).as("compareEVR(%s, %s)", b, a).isEqualTo(-expected);
+	}
+
+	@Test
+	public void testNumeric() {
+		assertVercmp("1.0", "1.0", 0);
+		assertVercmp("1.0", "2.0", -1);
+		assertVercmp("2.0.1", "2.0.1", 0);
+		assertVercmp("2.0", "2.0.1", -1);
+		assertVercmp("1.9", "1.10", -1);
+		assertVercmp("3.0.0_fc", "3.0.0.fc", 0);
+	}
+
+	@Test
+	public void testLeadingZeros() {
+		assertVercmp("1.05", "1.5", 0);
+		assertVercmp("1.010", "1.9", 1);
+		assertVercmp("1.000", "1.0", 0);
+	}
+
+	@Test
+	public void testAlphanumeric() {
+		assertVercmp("2.0.1a", "2.0.1a", 0);
+		assertVercmp("2.0.1a", "2.0.1", 1);
+		assertVercmp("5.5p1", "5.5p2", -1);
+		assertVercmp("5.5p10", "5.5p1", 1);
+		assertVercmp("10xyz", "10.1xyz", -1);
+		assertVercmp("xyz10", "xyz10.1", -1);
+		assertVercmp("xyz.4", "8", -1);
+		assertVercmp("10a2", "10b2", -1);
+		assertVercmp("1b.fc17", "1.fc17", -1);
+		// numeric segments are newer than alpha segments
+		assertVercmp("2a", "2.0", -1);
+		assertVercmp("1.0", "1.fc4", 1);
+	}
+
+	@Test
+	public void testTilde() {
+		assertVercmp("1.0~rc1", "1.0~rc1", 0);
+		assertVercmp("1.0~rc1", "1.0", -1);
+		assertVercmp("1.0~rc1", "1.0~rc2", -1);
+		assertVercmp("1.0~rc1~git123", "1.0~rc1", -1);
+		assertVercmp("1.0~rc1", "1.0arc1", -1);
+	}
+
+	@Test
+	public void testCaret() {
+		assertVercmp("1.0^", "1.0^", 0);
+		assertVercmp("1.0^", "1.0", 1);
+		assertVercmp("1.0^git1", "1.0", 1);
+		assertVercmp("1.0^git1", "1.01", -1);
+		assertVercmp("1.0^20160101", "1.0.1", -1);
+		assertVercmp("1.0^20160101^git1", "1.0^20160101", 1);
+		assertVercmp("1.0^git1", "1.0^git2", -1);
+		assertVercmp("1.0~rc1^git1", "1.0~rc1", 1);
+		assertVercmp("1.0^git1~pre", "1.0^git1", -1);
+	}
+
+	@Test
+	public void testEpochRelease() {
+		assertEVR("1:1.0-1", "2:0.9-1", -1);
+		assertEVR("1:1.0-1", "1:1.0-1", 0);
+		assertEVR("1.0-2", "1.0-10", -1);
+		assertEVR("1.0-1.el7", "1.0-1.el7_2", -1);
+		assertEVR("1.1-1", "1.0-5", 1);
+		// epoch and release are only compared when both sides specify them
+		assertEVR("1.0-1", "1:1.0-1", 0);
+		assertEVR("1.0", "1.0-5", 0);
+		assertEVR("2:1.0", "1:1.0-5", 1);
+	}
+}